@@ -1,12 +1,20 @@
 package com.morticia.compsim.IO.GUI.MetaTerminal;
 
 import com.morticia.compsim.IO.IOHandler;
+import com.morticia.compsim.Machine.Event.EventBus;
+import com.morticia.compsim.Machine.Event.EventQueue;
+import com.morticia.compsim.Machine.Event.EventStats;
 import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Machine.MachineHandler;
 import com.morticia.compsim.Machine.Networking.Network;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import com.morticia.compsim.RuntimeHandler;
+import com.morticia.compsim.Util.Disk.ContentCache;
+import com.morticia.compsim.Util.Disk.WriteBehind;
 import com.morticia.compsim.Util.Disk.DiskUtil;
 
+import org.luaj.vm2.LuaTable;
+
 import javax.swing.*;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
@@ -42,7 +50,10 @@ public class MetaTerminalEventHandler implements MouseListener, MouseWheelListen
         switch (command) {
             case "help":
                 meta.println("list_machines\nmk_machine [string name]\nrm_machine [string name]\nopen_terminal [string name]" +
-                        "\nlist_networks");
+                        "\nlist_networks\ntick_rate [int ticks_per_second]\nevent_queue [string name] [int capacity] [string drop_oldest|drop_newest|block]" +
+                        "\nevent_stats [string name] [int log_interval_ms]\nbroadcast [string topic] [string message]" +
+                        "\nscript_budget [string name] [int instructions] [int milliseconds]\nps [string name]" +
+                        "\nfile_cache [int budget_bytes] [int flush_ms]");
                 break;
             case "list_machines":
                 // TODO: 7/14/22 During story mode make this more selective
@@ -60,6 +71,10 @@ public class MetaTerminalEventHandler implements MouseListener, MouseWheelListen
                 for (Machine i : RuntimeHandler.machineHandler.machines) {
                     if (i.desig.equals(args.get(0))) {
                         i.save();
+                        RuntimeHandler.machineHandler.scheduler.remove(i);
+                        i.eventHandler.cancelTimers();
+                        i.filesystem.setEvictIdleMillis(0);
+                        EventBus.shared.leaveAll(i);
                         meta.println(RuntimeHandler.machineHandler.machines.remove(i) && DiskUtil.deleteFolder("/Machines/" + i.desig)
                         ? "Removed" : "No such machine found");
                         break label;
@@ -83,6 +98,109 @@ public class MetaTerminalEventHandler implements MouseListener, MouseWheelListen
                     meta.println(i);
                 }
                 break;
+            case "event_queue":
+                if (args.size() < 1) {meta.println("Please enter [1] argument"); break;}
+                for (Machine i : RuntimeHandler.machineHandler.machines) {
+                    if (i.desig.equals(args.get(0))) {
+                        try {
+                            if (args.size() > 1) i.eventHandler.events.capacity = Math.max(0, Integer.parseInt(args.get(1)));
+                        } catch (NumberFormatException e) {
+                            meta.println("Capacity has to be a number, 0 is unbounded");
+                            break label;
+                        }
+                        if (args.size() > 2) {
+                            EventQueue.Overflow policy = EventQueue.Overflow.fromString(args.get(2));
+                            if (policy == null) {
+                                meta.println("Policy has to be drop_oldest, drop_newest or block");
+                                break label;
+                            }
+                            i.eventHandler.events.overflowPolicy = policy;
+                        }
+                        meta.println(i.eventHandler.events);
+                        break label;
+                    }
+                }
+                meta.println("No [" + args.get(0) + "] machine found");
+                break;
+            case "event_stats":
+                if (args.size() < 1) {meta.println("Please enter [1] argument"); break;}
+                for (Machine i : RuntimeHandler.machineHandler.machines) {
+                    if (i.desig.equals(args.get(0))) {
+                        if (args.size() > 1) {
+                            try {
+                                i.eventStatsInterval = Math.max(0, Long.parseLong(args.get(1)));
+                            } catch (NumberFormatException e) {
+                                meta.println("Interval has to be a number, 0 turns logging off");
+                                break label;
+                            }
+                            i.eventHandler.setStatsLogInterval(i.eventStatsInterval);
+                            meta.println("Logging stats " + (i.eventStatsInterval > 0 ? "every " + i.eventStatsInterval + "ms" : "off"));
+                        }
+                        meta.println(i.eventHandler.events);
+                        for (EventStats j : i.eventHandler.stats.values()) {
+                            meta.println(j);
+                        }
+                        break label;
+                    }
+                }
+                meta.println("No [" + args.get(0) + "] machine found");
+                break;
+            case "broadcast":
+                if (args.size() < 1) {meta.println("Please enter [1] argument"); break;}
+                LuaTable payload = new LuaTable();
+                payload.set("message", String.join(" ", args.subList(1, args.size())));
+                meta.println("Queued on " + EventBus.shared.publish(args.get(0), payload, null) + " machines");
+                break;
+            case "file_cache":
+                try {
+                    if (args.size() > 0) ContentCache.shared.budget = Math.max(0, Long.parseLong(args.get(0)));
+                    if (args.size() > 1) WriteBehind.shared.flushMillis = Math.max(1, Long.parseLong(args.get(1)));
+                } catch (NumberFormatException e) {
+                    meta.println("Budget and flush interval have to be numbers");
+                    break;
+                }
+                meta.println(ContentCache.shared);
+                meta.println(WriteBehind.shared);
+                break;
+            case "tick_rate":
+                if (args.size() < 1) {meta.println("Please enter [1] argument"); break;}
+                try {
+                    RuntimeHandler.machineHandler.setTickRate(Integer.parseInt(args.get(0)));
+                    meta.println("Tick rate set to " + RuntimeHandler.machineHandler.tickRate);
+                } catch (NumberFormatException e) {
+                    meta.println("[" + args.get(0) + "] is not a number");
+                }
+                break;
+            case "script_budget":
+                if (args.size() < 1) {meta.println("Please enter [1] argument"); break;}
+                for (Machine i : RuntimeHandler.machineHandler.machines) {
+                    if (i.desig.equals(args.get(0))) {
+                        try {
+                            if (args.size() > 1) i.instructionBudget = Long.parseLong(args.get(1));
+                            if (args.size() > 2) i.timeBudget = Long.parseLong(args.get(2));
+                        } catch (NumberFormatException e) {
+                            meta.println("Budgets have to be numbers");
+                            break label;
+                        }
+                        meta.println("Instructions: " + i.instructionBudget + " | Milliseconds: " + i.timeBudget + " (0 is unlimited)");
+                        break label;
+                    }
+                }
+                meta.println("No [" + args.get(0) + "] machine found");
+                break;
+            case "ps":
+                if (args.size() < 1) {meta.println("Please enter [1] argument"); break;}
+                for (Machine i : RuntimeHandler.machineHandler.machines) {
+                    if (i.desig.equals(args.get(0))) {
+                        for (MachineProcess j : i.processHandler.processes) {
+                            meta.println(String.format("%d %s | %s | nice: %d | cpu: %dms (%.1f%%)%s", j.id, j.processName,
+                                    j.statusMsg, j.nice, j.cpuNanos / 1_000_000L, j.getCpuUsage() * 100, j.continuous ? " | continuous" : ""));
+                        }
+                        break label;
+                    }
+                }
+                meta.println("No [" + args.get(0) + "] machine found");
+                break;
             default:
                 meta.println("Please enter a valid command. Type 'help' for a list of commands");
                 break;
@@ -4,7 +4,7 @@ import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Machine.MachineIOStream.IOComponent;
 import com.morticia.compsim.Machine.MachineIOStream.MachineIOStream;
 import com.morticia.compsim.Util.Lua.Lib.TerminalLib;
-import com.morticia.compsim.Util.Lua.LuaParamData;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
 import com.morticia.compsim.Util.UI.GUI.MainFrame;
 import com.morticia.compsim.Util.UI.GUI.TextWrappingJLabel;
 import org.luaj.vm2.LuaTable;
@@ -165,27 +165,38 @@ public class Terminal implements IOComponent {
                     text = text.replaceFirst("./", "run ");
                 }
                 List<String> str = new ArrayList<>(List.of(text.split(" ")));
-                List<String> params = new ArrayList<>(machine.eventHandler.getEvent("text_entered").eventData);
-                params.add("text: " + inputField.getText());
-                //params.add("command: " + str.get(0));
-                LuaParamData d = new LuaParamData(params, false);
+                LuaTable payload = new LuaTable();
+                payload.set("text", inputField.getText());
+                //payload.set("command", str.get(0));
                 str.remove(0);
                 LuaTable table = new LuaTable();
                 for (int i = 0; i < str.size(); i++) {
                     table.set(i + 1, str.get(i));
                 }
-                //d.addTable("args", table);
-                d.addTable("m_terminal", toTable());
-
-                input.add(0, inputField.getText());
+                //payload.set("args", table);
+                payload.set("m_terminal", toTable());
+
+                synchronized (Terminal.this) {
+                    input.add(0, inputField.getText());
+                    inputAdded = true;
+                    // Wakes anything parked in nextLine
+                    Terminal.this.notifyAll();
+                }
+                // Processes waiting on a line are resumed by the machine's tick
+                machine.wake();
                 inputIndex = -1;
 
-                machine.eventHandler.triggerEvent("text_entered", d);
+                // Queued rather than run here, handlers and subscribers run on the machine's tick and not on the swing thread.
+                // The swing thread never waits for room either, that would freeze the whole window
+                machine.eventHandler.addEvent("text_entered", payload, false);
             }
         });
         // New terminals made here, it isn't working because now it isn't static. Needs to use a different object and pass in this
-        inputField.addMouseWheelListener(new TerminalEventHandler(this));
-        inputField.addKeyListener(new TerminalEventHandler(this));
+        TerminalEventHandler handler = new TerminalEventHandler(this);
+        inputField.addMouseWheelListener(handler);
+        inputField.addKeyListener(handler);
+        inputField.addMouseListener(handler);
+        inputField.addMouseMotionListener(handler);
         doc = inputField.getDocument();
         doc.addUndoableEditListener(new UndoableEditListener() {
             @Override
@@ -272,8 +283,15 @@ public class Terminal implements IOComponent {
 
     public synchronized String nextLine() {
         inputRequested = true;
+        SwingUtilities.updateComponentTreeUI(userInputPanel);
         while (input.size() < 1) {
-            SwingUtilities.updateComponentTreeUI(userInputPanel);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                inputRequested = false;
+                return "";
+            }
         }
         inputRequested = false;
         String buffer = input.get(0);
@@ -285,7 +303,13 @@ public class Terminal implements IOComponent {
         inputRequested = true;
         prefixDisplay.setText(in);
         while (!inputAdded) {
-            Thread.onSpinWait();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                inputRequested = false;
+                return "";
+            }
         }
         inputAdded = false;
         inputRequested = false;
@@ -294,6 +318,44 @@ public class Terminal implements IOComponent {
         return buffer;
     }
 
+    /**
+     * Asks for a line without waiting for it. Processes use this and then yield until hasLine says one came in
+     *
+     * @param in Prefix to show, null leaves the prefix as is
+     */
+    public synchronized void requestLine(String in) {
+        inputRequested = true;
+        if (in != null) {
+            prefixDisplay.setText(in);
+        } else {
+            SwingUtilities.updateComponentTreeUI(userInputPanel);
+        }
+    }
+
+    /**
+     * Whether or not a line asked for with requestLine is ready to take
+     *
+     * @param fresh True to only count lines entered since the last one was taken, like nextLine(String)
+     * @return Whether or not there's a line
+     */
+    public synchronized boolean hasLine(boolean fresh) {
+        return fresh ? inputAdded : !input.isEmpty();
+    }
+
+    /**
+     * Takes the line asked for with requestLine
+     *
+     * @return The line, empty if there isn't one
+     */
+    public synchronized String takeLine() {
+        inputAdded = false;
+        inputRequested = false;
+        if (input.isEmpty()) {
+            return "";
+        }
+        return input.remove(0);
+    }
+
     /**
      * Clears the terminal of all text
      */
@@ -333,7 +395,24 @@ public class Terminal implements IOComponent {
         return getColor(hex) + text + colorReset;
     }
 
+    // Binding table handed to lua, nothing in it changes so it's only built once
+    private volatile LuaTable luaTable;
+
+    /**
+     * Gets the lua binding for this terminal, the same read-only table is handed out every time
+     *
+     * @return The binding table
+     */
     public LuaTable toTable() {
+        LuaTable table = luaTable;
+        if (table == null) {
+            table = new ReadOnlyLuaTable(buildTable());
+            luaTable = table;
+        }
+        return table;
+    }
+
+    private LuaTable buildTable() {
         LuaTable retVal = new LuaTable();
         retVal.set("is_null", LuaValue.valueOf(false));
         retVal.set("id", id);
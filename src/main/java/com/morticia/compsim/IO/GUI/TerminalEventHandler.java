@@ -1,6 +1,8 @@
 package com.morticia.compsim.IO.GUI;
 
 import com.morticia.compsim.IO.IOHandler;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
 
 import javax.swing.*;
 import javax.swing.undo.CannotRedoException;
@@ -8,13 +10,42 @@ import javax.swing.undo.CannotUndoException;
 import java.awt.event.*;
 
 // TODO: 7/8/22 Get rid of the code that was only useful for lunan lmao
-public class TerminalEventHandler implements MouseListener, MouseWheelListener, KeyListener {
+public class TerminalEventHandler implements MouseListener, MouseMotionListener, MouseWheelListener, KeyListener {
     public Terminal terminal;
 
     public TerminalEventHandler(Terminal terminal) {
         this.terminal = terminal;
     }
 
+    /**
+     * Queues an input event on the terminal's machine, skipped if the machine doesn't have it registered. This runs on the
+     * swing thread, so it never waits for room in a full queue
+     *
+     * @param eventName Name of the event
+     * @param payload Data for the event
+     */
+    private void emit(String eventName, LuaTable payload) {
+        if (terminal.machine.eventHandler.getEvent(eventName) != null) {
+            terminal.machine.eventHandler.addEvent(eventName, payload, false);
+        }
+    }
+
+    private static LuaTable keyPayload(KeyEvent e) {
+        LuaTable payload = new LuaTable();
+        payload.set("key_code", LuaValue.valueOf(e.getKeyCode()));
+        if (e.getKeyChar() != KeyEvent.CHAR_UNDEFINED) {
+            payload.set("key_char", LuaValue.valueOf(String.valueOf(e.getKeyChar())));
+        }
+        return payload;
+    }
+
+    private static LuaTable mousePayload(MouseEvent e) {
+        LuaTable payload = new LuaTable();
+        payload.set("x", LuaValue.valueOf(e.getX()));
+        payload.set("y", LuaValue.valueOf(e.getY()));
+        return payload;
+    }
+
     @Override
     public void keyTyped(KeyEvent e) {
 
@@ -22,11 +53,12 @@ public class TerminalEventHandler implements MouseListener, MouseWheelListener,
 
     @Override
     public void keyPressed(KeyEvent e) {
-
+        emit("key_pressed", keyPayload(e));
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
+        emit("key_released", keyPayload(e));
         // Shift focus on key press events
         terminal.machine.guiHandler.p_terminal = terminal;
         if (e.getKeyCode() == 38) { // Up arrow
@@ -84,6 +116,10 @@ public class TerminalEventHandler implements MouseListener, MouseWheelListener,
                 terminal.updateFont();
             }
             terminal.scrollToBottom();
+        } else {
+            LuaTable payload = new LuaTable();
+            payload.set("amount", LuaValue.valueOf(e.getWheelRotation()));
+            emit("scrolled", payload);
         }
     }
 
@@ -94,7 +130,9 @@ public class TerminalEventHandler implements MouseListener, MouseWheelListener,
 
     @Override
     public void mousePressed(MouseEvent e) {
-
+        LuaTable payload = mousePayload(e);
+        payload.set("button", LuaValue.valueOf(e.getButton()));
+        emit("button_pressed", payload);
     }
 
     @Override
@@ -111,4 +149,14 @@ public class TerminalEventHandler implements MouseListener, MouseWheelListener,
     public void mouseExited(MouseEvent e) {
 
     }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        emit("moved", mousePayload(e));
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        emit("moved", mousePayload(e));
+    }
 }
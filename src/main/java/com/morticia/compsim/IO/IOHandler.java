@@ -8,11 +8,13 @@ import com.morticia.compsim.Util.UI.GUI.MainFrame;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class IOHandler extends Thread {
     public List<Terminal> terminals;
-    public CopyOnWriteArrayList<Event> events;
+    public LinkedBlockingQueue<Event> events;
+    // Most GUI requests waiting at once, anything past this is turned away by offerEvent
+    public static final int eventCapacity = 1024;
 
     // This is a list so I can initialize several of these and have several windows pretty easily
     public List<MainFrame> mainFrames;
@@ -22,10 +24,26 @@ public class IOHandler extends Thread {
     public IOHandler() {
         super("IOHandler");
         this.terminals = new ArrayList<>();
-        this.events = new CopyOnWriteArrayList<>();
+        this.events = new LinkedBlockingQueue<>(eventCapacity);
         this.mainFrames = new ArrayList<>();
     }
 
+    /**
+     * Queues a request for the IO thread, dropping it if the queue's full so a runaway machine can't fill the heap
+     *
+     * @param event Request to queue
+     * @return Whether or not it was queued
+     */
+    public boolean offerEvent(Event event) {
+        if (events.offer(event)) {
+            return true;
+        }
+        if (event.machine != null && event.machine.logHandler != null) {
+            event.machine.logHandler.log("IO queue full (capacity " + eventCapacity + "), dropped [" + event.eventName + "]");
+        }
+        return false;
+    }
+
     @Override
     public void run() {
         try {
@@ -40,30 +58,31 @@ public class IOHandler extends Thread {
         metaTerminal = new MetaTerminal();
         metaTerminal.start();
 
+        // Blocks until there's something to do instead of spinning over an empty list
         while (!Thread.interrupted()) {
-            for (Event i : events) {
-                if (i.eventName.equals("end")) {
-                    this.interrupt();
-                    return;
-                } else if (i.eventName.equals("start_terminal")) {
-                    Terminal terminal = new Terminal(i.machine, Integer.parseInt(i.eventType));
-                    MainFrame mainFrame = new MainFrame();
-                    mainFrame.show(terminal);
-                    i.machine.guiHandler.terminals.add(terminal);
-                    i.machine.guiHandler.p_terminal = terminal;
-                    i.machine.guiHandler.qeue.add(terminal);
-                    mainFrames.add(mainFrame);
-                    terminals.add(terminal);
-                    i.machine.eventHandler.events.add(new String[]{
-                            "terminal_started",
-                            List.of(new String[]{}).toString()
-                    });
-                    i.machine.logHandler.log("[" + terminal.id + "]: Terminal Initiated");
-                    events.remove(i);
-                } else if (i.eventName.equals("end_terminal")) {
-                    terminals.removeIf(j -> j.machine.desig.equals(i.eventType));
-                    events.remove(i);
-                }
+            Event i;
+            try {
+                i = events.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (i.eventName.equals("end")) {
+                this.interrupt();
+                return;
+            } else if (i.eventName.equals("start_terminal")) {
+                Terminal terminal = new Terminal(i.machine, Integer.parseInt(i.eventType));
+                MainFrame mainFrame = new MainFrame();
+                mainFrame.show(terminal);
+                i.machine.guiHandler.terminals.add(terminal);
+                i.machine.guiHandler.p_terminal = terminal;
+                i.machine.guiHandler.qeue.add(terminal);
+                mainFrames.add(mainFrame);
+                terminals.add(terminal);
+                i.machine.eventHandler.addEvent("terminal_started", new String[]{});
+                i.machine.logHandler.log("[" + terminal.id + "]: Terminal Initiated");
+            } else if (i.eventName.equals("end_terminal")) {
+                terminals.removeIf(j -> j.machine.desig.equals(i.eventType));
             }
         }
     }
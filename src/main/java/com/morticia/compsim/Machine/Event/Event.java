@@ -3,6 +3,7 @@ package com.morticia.compsim.Machine.Event;
 import com.morticia.compsim.Machine.Filesystem.ExecutionPermissions;
 import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Util.Lua.Lib.EventLib;
+import com.morticia.compsim.Util.Lua.LuaParamData;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 
@@ -26,8 +27,105 @@ public class Event {
     // a folder with the name of the event type for the file to execute
     public String eventType;
     public List<String> eventData;
+    // eventData as a keyed table, built once so triggering doesn't have to parse strings
+    public LuaTable baseData;
     public ExecutionPermissions eventHandlerExecPerms;
 
+    // How bursts of this event get collapsed while they wait in the queue
+    public Coalesce coalesce = Coalesce.none;
+    // Quiet time a debounced event waits for before it's queued
+    public long debounceMillis = 0;
+
+    // Lane this event waits in, higher lanes get more of each tick
+    public Priority priority;
+
+    /**
+     * Queue lanes events can wait in, in order of importance. Each lane's weight is how many of its events get handled
+     * per turn when every lane is busy
+     */
+    public enum Priority {
+        // Anything a user is waiting on, keys, mouse and terminals
+        interactive(8),
+        system(4),
+        network(2),
+        // Background work that can wait
+        bulk(1);
+
+        public final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        public static Priority fromString(String s) {
+            for (Priority i : values()) {
+                if (i.name().equalsIgnoreCase(s)) {
+                    return i;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Picks the lane for an event type, a type named after a lane goes in it
+         *
+         * @param eventType Type of the event
+         * @return The lane, system if the type doesn't say
+         */
+        public static Priority forType(String eventType) {
+            if (eventType == null) {
+                return system;
+            }
+            Priority p = fromString(eventType);
+            if (p != null) {
+                return p;
+            }
+            switch (eventType) {
+                case "key":
+                case "mouse":
+                case "terminal":
+                    return interactive;
+                case "network":
+                    return network;
+                default:
+                    return system;
+            }
+        }
+
+        public static int[] weights() {
+            Priority[] values = values();
+            int[] weights = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                weights[i] = values[i].weight;
+            }
+            return weights;
+        }
+    }
+
+    /**
+     * Ways a burst of the same event can be collapsed before handlers run
+     */
+    public enum Coalesce {
+        // Every event is handled
+        none,
+        // Only the newest payload waiting in the queue is handled
+        keep_last,
+        // Payloads waiting in the queue are folded into one, numbers are added up, strings are joined and anything else
+        // is replaced by the newer value
+        merge,
+        // Nothing is queued until the event stops arriving for debounceMillis, then the newest payload is handled
+        debounce;
+
+        public static Coalesce fromString(String s) {
+            for (Coalesce i : values()) {
+                if (i.name().equalsIgnoreCase(s)) {
+                    return i;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Constructor
      *
@@ -42,12 +140,15 @@ public class Event {
         this.eventName = eventName;
         this.eventType = eventType;
         this.eventHandlerExecPerms = execPerms;
+        this.priority = Priority.forType(eventType);
 
         this.eventData = new ArrayList<>();
         this.eventData.add("event_name: " + eventName);
         this.eventData.add("event_type: " + eventType);
         // TODO: 7/4/22 Add in machine data via 'toLuaTable' function in machine
         this.eventData.addAll(eventData);
+
+        this.baseData = LuaParamData.toKeyedTable(this.eventData);
     }
 
     /**
@@ -61,6 +162,7 @@ public class Event {
         this.machine = machine;
         this.eventName = eventName;
         this.eventType = eventType;
+        this.priority = Priority.forType(eventType);
         this.eventHandlerExecPerms = new ExecutionPermissions();
         this.eventHandlerExecPerms.canExecute = true;
 
@@ -68,6 +170,45 @@ public class Event {
         this.eventData.add("event_name: " + eventName);
         this.eventData.add("event_type: " + eventType);
         // TODO: 7/4/22 Add in machine data via 'toLuaTable' function in machine
+
+        this.baseData = LuaParamData.toKeyedTable(this.eventData);
+    }
+
+    /**
+     * Sets how bursts of this event are collapsed, call before registering it
+     *
+     * @param coalesce Policy to use
+     * @param debounceMillis Quiet time for debounce in milliseconds, ignored by the other policies
+     * @return This event
+     */
+    public Event setCoalesce(Coalesce coalesce, long debounceMillis) {
+        this.coalesce = coalesce == null ? Coalesce.none : coalesce;
+        this.debounceMillis = Math.max(0, debounceMillis);
+        return this;
+    }
+
+    /**
+     * Sets the lane this event waits in instead of the one its type picked, call before registering it
+     *
+     * @param priority Lane to use
+     * @return This event
+     */
+    public Event setPriority(Priority priority) {
+        if (priority != null) {
+            this.priority = priority;
+        }
+        return this;
+    }
+
+    /**
+     * Makes a fresh params table holding this event's data, ready for a handler
+     *
+     * @return The params table
+     */
+    public LuaTable paramTable() {
+        LuaTable table = new LuaTable();
+        table.set("tableType", "keyed");
+        return LuaParamData.copyInto(table, baseData);
     }
 
     public LuaTable toTable() {
@@ -77,6 +218,8 @@ public class Event {
         table.set("event_name", eventName);
         table.set("event_type", eventType);
         table.set("event_type", new EventLib.trigger(this));
+        table.set("coalesce", coalesce.name());
+        table.set("priority", priority.name());
         return table;
     }
 
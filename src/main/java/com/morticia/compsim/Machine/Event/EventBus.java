@@ -0,0 +1,154 @@
+package com.morticia.compsim.Machine.Event;
+
+import com.morticia.compsim.Machine.Machine;
+import com.morticia.compsim.Util.Lua.LuaParamData;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
+import org.luaj.vm2.LuaTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publish/subscribe across machines. Machines join topics and anything published to a topic is queued as an event on
+ * every machine in it
+ * <p>
+ * Publishing freezes the payload into one read-only table that every receiver shares, then walks the topic's members
+ * once adding it to each machine's queue. Nothing runs on the publishing thread apart from queueing, the handlers run
+ * on each receiver's own tick
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/9/22
+ */
+
+public class EventBus {
+    public static final EventBus shared = new EventBus();
+
+    /**
+     * A machine in a topic and the event it gets raised as
+     */
+    public static class Member {
+        public final Machine machine;
+        public final String eventName;
+
+        public Member(Machine machine, String eventName) {
+            this.machine = machine;
+            this.eventName = eventName;
+        }
+    }
+
+    // Topic -> members. Arrays are replaced rather than changed so publishing never has to lock
+    public final Map<String, Member[]> topics;
+
+    public EventBus() {
+        this.topics = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a machine to a topic, registering the event it'll receive if it isn't already. Joining again changes the
+     * event name
+     *
+     * @param topic Topic to join
+     * @param machine Machine joining
+     * @param eventName Event raised on the machine for each publish
+     * @return Whether or not the machine joined, false if the event name is already taken by an event that isn't a bus one
+     */
+    public boolean join(String topic, Machine machine, String eventName) {
+        if (!machine.eventHandler.registerEvent(new Event(machine, eventName, "bus"))) {
+            // Publishing to an event something else owns would run its handler with bus payloads
+            Event existing = machine.eventHandler.getEvent(eventName);
+            if (existing == null || !"bus".equals(existing.eventType)) {
+                return false;
+            }
+        }
+        Member member = new Member(machine, eventName);
+        topics.compute(topic, (k, v) -> {
+            List<Member> list = new ArrayList<>();
+            if (v != null) {
+                for (Member i : v) {
+                    if (i.machine != machine) {
+                        list.add(i);
+                    }
+                }
+            }
+            list.add(member);
+            return list.toArray(new Member[0]);
+        });
+        return true;
+    }
+
+    /**
+     * Takes a machine out of a topic
+     *
+     * @param topic Topic to leave
+     * @param machine Machine leaving
+     * @return Whether or not it was in the topic
+     */
+    public boolean leave(String topic, Machine machine) {
+        boolean[] found = {false};
+        topics.computeIfPresent(topic, (k, v) -> {
+            List<Member> list = new ArrayList<>(v.length);
+            for (Member i : v) {
+                if (i.machine == machine) {
+                    found[0] = true;
+                } else {
+                    list.add(i);
+                }
+            }
+            return list.isEmpty() ? null : list.toArray(new Member[0]);
+        });
+        return found[0];
+    }
+
+    /**
+     * Takes a machine out of every topic, for when it's removed
+     *
+     * @param machine Machine leaving
+     */
+    public void leaveAll(Machine machine) {
+        for (String i : topics.keySet()) {
+            leave(i, machine);
+        }
+    }
+
+    /**
+     * Queues an event on every machine in a topic, all of them sharing one read-only copy of the payload
+     *
+     * @param topic Topic to publish to
+     * @param payload Keyed data for the handlers, copied once so the caller can keep changing theirs
+     * @param sender Machine publishing, null for the host
+     * @return Number of machines it was queued on
+     */
+    public int publish(String topic, LuaTable payload, Machine sender) {
+        Member[] members = topics.get(topic);
+        if (members == null) {
+            return 0;
+        }
+
+        LuaTable data = payload == null ? new LuaTable() : LuaParamData.copyInto(new LuaTable(), payload);
+        data.set("topic", topic);
+        data.set("sender", sender == null ? "host" : sender.desig);
+        LuaTable frozen = new ReadOnlyLuaTable(data);
+
+        int n = 0;
+        for (Member i : members) {
+            if (i.machine.eventHandler.deliver(i.eventName, frozen)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Gets how many machines are in a topic
+     *
+     * @param topic Topic to check
+     * @return Number of members
+     */
+    public int size(String topic) {
+        Member[] members = topics.get(topic);
+        return members == null ? 0 : members.length;
+    }
+}
@@ -5,16 +5,27 @@ import com.morticia.compsim.Machine.Filesystem.VirtualFile;
 import com.morticia.compsim.Machine.Filesystem.VirtualFolder;
 import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Machine.MachineIOStream.IOComponent;
-import com.morticia.compsim.Util.Disk.DataHandler.Serializable;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import com.morticia.compsim.Util.Disk.DiskFile;
+import com.morticia.compsim.Util.Lua.InstructionBudget;
 import com.morticia.compsim.Util.Lua.LuaParamData;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class to handle events for machines
@@ -25,10 +36,46 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 
 public class EventHandler {
-    public List<DiskFile> eventHandlers;
     // This is a group of events
     public List<Event> eventList;
-    public CopyOnWriteArrayList<String[]> events;
+    public EventQueue<QueuedEvent> events;
+
+    // Lookups used when triggering, kept up to date as events are registered and files under /evn come and go
+    public Map<String, Event> eventIndex;
+    // Event name -> every handler file with that name, the event type decides between them
+    public Map<String, List<VirtualFile>> handlerIndex;
+
+    // Event name -> lua functions subscribed to it, sorted in the order they run. Lists are replaced rather than changed
+    // so triggering never has to lock
+    public Map<String, List<Subscription>> subscriptions;
+    private final Map<Integer, Subscription> subscriptionIds;
+    private final AtomicInteger subscriptionCounter = new AtomicInteger(0);
+
+    public static final int defaultBatchSize = 32;
+
+    // Timers set from lua, by id so they can be cancelled. One-shot timers take themselves out when they fire
+    public Map<Integer, TimerWheel.Timeout> timers;
+    private final AtomicInteger timerIds = new AtomicInteger(0);
+
+    // Event name -> the queued event bursts of that name are being folded into, and debounced payloads waiting on their
+    // timer. Both are guarded by the coalesced map's lock
+    private final Map<String, QueuedEvent> coalesced = new HashMap<>();
+    private final Map<String, TimerWheel.Timeout> debounceTimers = new HashMap<>();
+    // Events folded into one already waiting instead of being queued on their own
+    public final AtomicLong coalescedCount = new AtomicLong(0);
+
+    // Overflow gets logged at most this often, a flood would otherwise flood the log too
+    public static final long overflowLogMillis = 1000;
+    // Events dropped as of the last overflow log line
+    private final AtomicLong overflowLogged = new AtomicLong(0);
+    private volatile long overflowLogTime = 0;
+
+    // Event name -> how long it waits and runs for
+    public Map<String, EventStats> stats;
+    // Periodic timer writing stats to the machine log, null when that's off
+    private TimerWheel.Timeout statsLogTimer;
+    // Events handled as of the last stats log line, nothing's logged if nothing happened
+    private long statsLogged = 0;
 
     public Machine machine;
 
@@ -39,11 +86,27 @@ public class EventHandler {
      */
     public EventHandler(Machine machine) {
         this.machine = machine;
-        this.eventHandlers = new ArrayList<>();
-        this.eventList = new ArrayList<>();
-        this.events = new CopyOnWriteArrayList<>();
-
-        registerEventHandlers(machine.filesystem.events);
+        this.eventList = new CopyOnWriteArrayList<>();
+        this.events = new EventQueue<>(defaultBatchSize, machine.eventQueueCapacity, machine.eventOverflowPolicy,
+                Event.Priority.weights());
+        // A coalescing slot pushed out of a full queue has to be forgotten, or later events would fold into it and vanish
+        this.events.evictionListener = e -> {
+            if (e.coalesced) {
+                synchronized (coalesced) {
+                    coalesced.remove(e.eventName, e);
+                }
+            }
+        };
+        this.eventIndex = new ConcurrentHashMap<>();
+        this.handlerIndex = new ConcurrentHashMap<>();
+        this.timers = new ConcurrentHashMap<>();
+        this.subscriptions = new ConcurrentHashMap<>();
+        this.subscriptionIds = new ConcurrentHashMap<>();
+        this.stats = new ConcurrentHashMap<>();
+
+        if (machine.filesystem.events != null) {
+            registerEventHandlers(machine.filesystem.events);
+        }
     }
 
     /**
@@ -52,128 +115,594 @@ public class EventHandler {
      * @param f Folder to register from
      */
     public void registerEventHandlers(VirtualFolder f) {
-        for (VirtualFolder i : f.folders) {
+        for (VirtualFolder i : f.getFolders()) {
             registerEventHandlers(i);
         }
 
-        for (VirtualFile i : f.files) {
+        for (VirtualFile i : f.getFiles()) {
             // TODO: 7/4/22 Think about registering events from files present
-            eventHandlers.add(i.trueFile);
+            addEventHandler(i);
         }
     }
 
+    /**
+     * Removes every event handler in the folder provided. Recursively checks all folders
+     *
+     * @param f Folder to remove from
+     */
+    public void unregisterEventHandlers(VirtualFolder f) {
+        for (VirtualFolder i : f.folders.values()) {
+            unregisterEventHandlers(i);
+        }
+
+        for (VirtualFile i : f.files.values()) {
+            removeEventHandler(i);
+        }
+    }
+
+    /**
+     * Adds a single handler file to the index, called by folders under /evn when a file is added
+     *
+     * @param f File to add
+     */
+    public void addEventHandler(VirtualFile f) {
+        if (f.trueFile == null) {
+            return;
+        }
+
+        String name = getHandlerName(f);
+        if (name != null) {
+            // Only handlers with the same name can be duplicates, so just that list gets checked
+            handlerIndex.compute(name, (k, v) -> {
+                List<VirtualFile> list = v == null ? new CopyOnWriteArrayList<>() : v;
+                for (VirtualFile i : list) {
+                    if (i.trueFile == f.trueFile) {
+                        return list;
+                    }
+                }
+                list.add(f);
+                return list;
+            });
+        }
+    }
+
+    /**
+     * Removes a single handler file from the index, called by folders under /evn when a file is removed
+     *
+     * @param f File to remove
+     */
+    public void removeEventHandler(VirtualFile f) {
+        String name = getHandlerName(f);
+        if (name != null) {
+            handlerIndex.computeIfPresent(name, (k, v) -> {
+                v.remove(f);
+                return v.isEmpty() ? null : v;
+            });
+        }
+    }
+
+    /**
+     * Gets the event a handler file is for
+     *
+     * @param f Handler file
+     * @return The event name, null if the file isn't a lua script
+     */
+    private static String getHandlerName(VirtualFile f) {
+        if (f._name == null || !f._name.endsWith(".lua")) {
+            return null;
+        }
+        return f._name.substring(0, f._name.length() - 4);
+    }
+
     /**
      * Adds an event to the qeue of events to be processed
      *
      * @param eventName Name of the event to add
-     * @param data Additional data to pass to the lua handler
+     * @param payload Keyed data to pass to the lua handler, handed over as is
      */
-    public void addEvent(String eventName, List<String> data) {
-        events.add(new String[] {eventName, data.toString()});
+    public void addEvent(String eventName, LuaTable payload) {
+        addEvent(eventName, payload, true);
     }
 
     /**
      * Adds an event to the qeue of events to be processed
      *
      * @param eventName Name of the event to add
-     * @param data Additional data to pass to the lua handler
+     * @param payload Keyed data to pass to the lua handler, handed over as is
+     * @param mayBlock Whether or not the calling thread can wait for room if the queue is full and set to block. Threads
+     *                 that something else is waiting on, like the swing thread or a machine's own threads, shouldn't
      */
-    public void addEvent(String eventName, String[] data) {
-        events.add(new String[] {eventName, (List.of(data)).toString()});
+    public void addEvent(String eventName, LuaTable payload, boolean mayBlock) {
+        enqueue(eventName, payload, mayBlock);
     }
 
-    public Event getEvent(String name) {
-        for (Event i : eventList) {
-            if (i.eventName.equals(name)) {
-                return i;
+    /**
+     * Queues an event, coalescing it if the event asks for that
+     *
+     * @param eventName Name of the event to add
+     * @param payload Keyed data to pass to the lua handler
+     * @param mayBlock Whether or not the calling thread can wait for room if the queue is full and set to block
+     * @return Whether or not the event was taken, queued on its own or folded into one already waiting
+     */
+    private boolean enqueue(String eventName, LuaTable payload, boolean mayBlock) {
+        Event event = eventIndex.get(eventName);
+        // Unregistered events are counted as unhandled when they come out, they just wait with the system events until then
+        int lane = event == null ? Event.Priority.system.ordinal() : event.priority.ordinal();
+        boolean accepted;
+        if (event != null && event.coalesce != Event.Coalesce.none) {
+            if (event.coalesce == Event.Coalesce.debounce && event.debounceMillis > 0) {
+                debounce(event, payload);
+                return true;
+            }
+            accepted = coalesce(event, payload, mayBlock);
+        } else {
+            accepted = events.offer(new QueuedEvent(eventName, payload), lane, mayBlock);
+            if (accepted) {
+                machine.wake();
             }
         }
-        return null;
+        checkOverflow();
+        return accepted;
     }
 
     /**
-     * Triggers an event, calling a handler with the name and data given. You should not really be calling this function
+     * Adds an event from somewhere other than this machine, like the event bus. Never waits on a full queue, the
+     * sender has other machines to get to
      *
-     * @param eventName Name of the event to trigger
-     * @param data Data to include in execution globals
+     * @param eventName Name of the event to add
+     * @param payload Keyed data to pass to the lua handler, can be read-only and shared with other machines
+     * @return Whether or not the event was taken
      */
-    public void triggerEvent(String eventName, List<String> data) {
-        Event event = null;
-        DiskFile eventHandler = null;
+    public boolean deliver(String eventName, LuaTable payload) {
+        return enqueue(eventName, payload, false);
+    }
+
+    /**
+     * Logs how many events have been dropped since the last time, if the queue's been overflowing and it's been long
+     * enough since the last log line
+     */
+    private void checkOverflow() {
+        long total = events.rejected.get() + events.evicted.get();
+        long last = overflowLogged.get();
+        if (total == last) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - overflowLogTime < overflowLogMillis || !overflowLogged.compareAndSet(last, total)) {
+            return;
+        }
+        overflowLogTime = now;
+        machine.logHandler.log("Event queue full (capacity " + events.capacity + ", " + events.overflowPolicy.name() +
+                "): " + (total - last) + " events dropped | rejected: " + events.rejected.get() + " | evicted: " +
+                events.evicted.get() + " | blocked: " + events.blocked.get());
+    }
 
-        for (Event i : eventList) {
-            if (i.eventName.equals(eventName)) {
-                event = i;
+    /**
+     * Folds an event into the one of the same name already waiting in the queue, or queues it if there isn't one
+     *
+     * @param event Event being added
+     * @param payload Payload it was added with
+     * @param mayBlock Whether or not the calling thread can wait for room in the queue
+     * @return Whether or not the event was taken
+     */
+    private boolean coalesce(Event event, LuaTable payload, boolean mayBlock) {
+        LuaTable data = payload == null ? new LuaTable() : payload;
+        QueuedEvent q;
+        synchronized (coalesced) {
+            q = coalesced.get(event.eventName);
+            if (q != null) {
+                if (event.coalesce == Event.Coalesce.merge) {
+                    // Payloads can be shared or read-only, so the first fold merges into a copy
+                    q.payload = merge(q.count == 1 ? LuaParamData.copyInto(new LuaTable(), q.payload) : q.payload, data);
+                } else {
+                    q.payload = data;
+                }
+                q.count++;
+                coalescedCount.incrementAndGet();
+                return true;
             }
+            q = new QueuedEvent(event.eventName, data);
+            q.coalesced = true;
+            coalesced.put(event.eventName, q);
         }
+        // Offered outside the lock, a producer waiting for room mustn't hold up the tick releasing slots
+        if (!events.offer(q, event.priority.ordinal(), mayBlock)) {
+            synchronized (coalesced) {
+                coalesced.remove(event.eventName, q);
+            }
+            return false;
+        }
+        machine.wake();
+        return true;
+    }
 
-        if (event == null) {
-            return;
+    /**
+     * Holds an event back until it stops arriving for the event's debounce time, each new one pushes the timer back
+     *
+     * @param event Event being added
+     * @param payload Payload it was added with
+     */
+    private void debounce(Event event, LuaTable payload) {
+        LuaTable data = payload == null ? new LuaTable() : payload;
+        String name = event.eventName;
+        synchronized (coalesced) {
+            QueuedEvent q = coalesced.get(name);
+            TimerWheel.Timeout old = debounceTimers.get(name);
+            if (q != null && old != null) {
+                // Still waiting, push it back
+                q.payload = data;
+                q.count++;
+                coalescedCount.incrementAndGet();
+                old.cancel();
+            } else if (q == null) {
+                q = new QueuedEvent(name, data);
+                q.coalesced = true;
+                coalesced.put(name, q);
+            } else {
+                // Already queued and not handled yet, keep_last until it is
+                q.payload = data;
+                q.count++;
+                coalescedCount.incrementAndGet();
+                return;
+            }
+
+            QueuedEvent waiting = q;
+            // A timer that was pushed back can still fire if it was already running, so it checks it's the current one
+            TimerWheel.Timeout[] self = new TimerWheel.Timeout[1];
+            self[0] = TimerWheel.shared.schedule(() -> {
+                synchronized (coalesced) {
+                    if (coalesced.get(name) != waiting || debounceTimers.get(name) != self[0]) {
+                        return;
+                    }
+                    debounceTimers.remove(name);
+                    // The debounce delay isn't time spent waiting in the queue
+                    waiting.enqueuedNanos = System.nanoTime();
+                    if (!events.offer(waiting, event.priority.ordinal(), false)) {
+                        coalesced.remove(name, waiting);
+                        return;
+                    }
+                }
+                machine.wake();
+            }, event.debounceMillis);
+            debounceTimers.put(name, self[0]);
+        }
+    }
+
+    /**
+     * Folds a newer payload into an older one, numbers are added, strings are joined and anything else is replaced
+     *
+     * @param into Older payload, changed in place
+     * @param from Newer payload
+     * @return The older payload
+     */
+    private static LuaTable merge(LuaTable into, LuaTable from) {
+        for (Varargs n = from.next(LuaValue.NIL); !n.arg1().isnil(); n = from.next(n.arg1())) {
+            LuaValue old = into.rawget(n.arg1());
+            LuaValue v = n.arg(2);
+            if (old.type() == LuaValue.TNUMBER && v.type() == LuaValue.TNUMBER) {
+                into.rawset(n.arg1(), old.add(v));
+            } else if (old.type() == LuaValue.TSTRING && v.type() == LuaValue.TSTRING) {
+                into.rawset(n.arg1(), old.concat(v));
+            } else {
+                into.rawset(n.arg1(), v);
+            }
         }
+        return into;
+    }
 
-        for (DiskFile i : eventHandlers) {
-            if (i.fileName.equals(eventName + ".lua")) {
-                eventHandler = i;
+    /**
+     * Takes a coalesced event out of its slot so anything added after this starts a new one
+     *
+     * @param e Event about to be handled
+     * @return The payload to handle it with
+     */
+    private LuaTable release(QueuedEvent e) {
+        if (!e.coalesced) {
+            return e.payload;
+        }
+        synchronized (coalesced) {
+            coalesced.remove(e.eventName, e);
+            if (e.count > 1) {
+                LuaTable payload = e.payload instanceof ReadOnlyLuaTable
+                        ? LuaParamData.copyInto(new LuaTable(), e.payload) : e.payload;
+                payload.set("coalesced", e.count);
+                return payload;
             }
+            return e.payload;
         }
+    }
 
-        if (eventHandler == null) {
+    /**
+     * Adds an event to the qeue of events to be processed
+     *
+     * @param eventName Name of the event to add
+     * @param data Additional data to pass to the lua handler, formatted "key: value"
+     */
+    public void addEvent(String eventName, List<String> data) {
+        addEvent(eventName, LuaParamData.toKeyedTable(data));
+    }
+
+    /**
+     * Adds an event to the qeue of events to be processed
+     *
+     * @param eventName Name of the event to add
+     * @param data Additional data to pass to the lua handler, formatted "key: value"
+     */
+    public void addEvent(String eventName, String[] data) {
+        addEvent(eventName, Arrays.asList(data));
+    }
+
+    /**
+     * Queues an event after a delay, and optionally every period after that
+     *
+     * @param eventName Name of the event to add
+     * @param payload Keyed data passed to the handler, periodic events get a copy each time
+     * @param delayMillis How long to wait before the first one in milliseconds
+     * @param periodMillis Time between events in milliseconds, 0 to only queue it once
+     * @return Id of the timer, used to cancel it
+     */
+    public int scheduleEvent(String eventName, LuaTable payload, long delayMillis, long periodMillis) {
+        int id = timerIds.incrementAndGet();
+        boolean periodic = periodMillis > 0;
+        LuaTable data = payload == null ? new LuaTable() : payload;
+        TimerWheel.Timeout t = TimerWheel.shared.schedule(() -> {
+            // Runs on the timer wheel's thread, which can't wait on a full queue
+            if (periodic) {
+                enqueue(eventName, LuaParamData.copyInto(new LuaTable(), data), false);
+            } else {
+                timers.remove(id);
+                enqueue(eventName, data, false);
+            }
+        }, delayMillis, periodMillis);
+        timers.put(id, t);
+        // A short one-shot can fire and take itself out before it was put in, so it's taken out again here. Timers are
+        // marked done before they run, so between the two removes one always sees it
+        if (!periodic && t.isDone()) {
+            timers.remove(id, t);
+        }
+        return id;
+    }
+
+    /**
+     * Cancels a timer set with scheduleEvent
+     *
+     * @param id Id of the timer
+     * @return Whether or not it was still pending
+     */
+    public boolean cancelTimer(int id) {
+        TimerWheel.Timeout t = timers.remove(id);
+        return t != null && t.cancel();
+    }
+
+    /**
+     * Cancels every timer this machine has set
+     */
+    public void cancelTimers() {
+        for (Integer i : timers.keySet()) {
+            cancelTimer(i);
+        }
+        synchronized (coalesced) {
+            for (TimerWheel.Timeout i : debounceTimers.values()) {
+                i.cancel();
+            }
+            debounceTimers.clear();
+        }
+        setStatsLogInterval(0);
+    }
+
+    /**
+     * Gets the stats for an event, making them if it hasn't been handled yet
+     *
+     * @param eventName Name of the event
+     * @return The stats
+     */
+    public EventStats getStats(String eventName) {
+        return stats.computeIfAbsent(eventName, EventStats::new);
+    }
+
+    /**
+     * Writes the stats for every event handled so far to the machine log every so often
+     *
+     * @param millis Time between log lines in milliseconds, 0 to stop
+     */
+    public synchronized void setStatsLogInterval(long millis) {
+        if (statsLogTimer != null) {
+            statsLogTimer.cancel();
+            statsLogTimer = null;
+        }
+        if (millis > 0) {
+            statsLogTimer = TimerWheel.shared.schedule(this::logStats, millis, millis);
+        }
+    }
+
+    /**
+     * Writes the stats for every event to the machine log, skipped if nothing's been handled since last time
+     */
+    public void logStats() {
+        long handled = events.handled.get();
+        if (handled == statsLogged) {
             return;
         }
+        statsLogged = handled;
+        machine.logHandler.log("Event stats | " + events);
+        for (EventStats i : stats.values()) {
+            machine.logHandler.log("Event stats | " + i);
+        }
+    }
 
-        List<String> params = new ArrayList<>();
-        params.addAll(event.eventData);
-        params.addAll(data);
+    /**
+     * Subscribes a lua function to an event, it's called with the event's params every time the event triggers, before
+     * the handler file
+     *
+     * @param eventName Name of the event
+     * @param function Function to call, runs with the globals it was made in
+     * @param owner Process the subscription belongs to and ends with, null if there isn't one
+     * @param order Lower runs first, ties run in the order they subscribed
+     * @return Id of the subscription, used to unsubscribe
+     */
+    public int subscribe(String eventName, LuaFunction function, MachineProcess owner, int order) {
+        Subscription sub = new Subscription(subscriptionCounter.incrementAndGet(), eventName, function, owner, order);
+        subscriptionIds.put(sub.id, sub);
+        subscriptions.compute(eventName, (k, v) -> {
+            List<Subscription> list = v == null ? new ArrayList<>() : new ArrayList<>(v);
+            list.add(sub);
+            Collections.sort(list);
+            return Collections.unmodifiableList(list);
+        });
+        return sub.id;
+    }
 
-        IOComponent t = machine.defaultStream.component;
-        if (t instanceof Terminal) {
-            eventHandler.execute(machine, new LuaParamData(params, false).addTable("terminal", t.toTable()));
-        } else {
-            eventHandler.execute(machine, new LuaParamData(params, false));
+    /**
+     * Removes a subscription
+     *
+     * @param id Id returned by subscribe
+     * @return Whether or not there was a subscription with that id
+     */
+    public boolean unsubscribe(int id) {
+        Subscription sub = subscriptionIds.remove(id);
+        if (sub == null) {
+            return false;
         }
+        subscriptions.computeIfPresent(sub.eventName, (k, v) -> {
+            List<Subscription> list = new ArrayList<>(v);
+            list.remove(sub);
+            return list.isEmpty() ? null : Collections.unmodifiableList(list);
+        });
+        return true;
+    }
 
-        StringBuilder sb = new StringBuilder("[");
+    /**
+     * Removes every subscription a process made, called when it stops running
+     *
+     * @param owner Process to remove subscriptions for
+     */
+    public void unsubscribeAll(MachineProcess owner) {
+        for (Subscription i : subscriptionIds.values()) {
+            if (i.owner == owner) {
+                unsubscribe(i.id);
+            }
+        }
+    }
 
-        for (String i : params) {
-            sb.append(i).append(" | ");
+    /**
+     * Calls the subscribers of an event in order, a subscriber returning true stops the ones after it and the handler
+     * file from running
+     *
+     * @param subs Subscribers to call
+     * @param params Params passed to each one
+     * @return Whether or not a subscriber consumed the event
+     */
+    private boolean notifySubscribers(List<Subscription> subs, LuaTable params) {
+        for (Subscription i : subs) {
+            if (!i.isLive()) {
+                unsubscribe(i.id);
+                continue;
+            }
+            try {
+                LuaValue r = i.owner != null
+                        ? InstructionBudget.callOutside(i.owner.globals, i.function, params)
+                        : i.function.call(params);
+                if (r.toboolean()) {
+                    return true;
+                }
+            } catch (LuaError e) {
+                machine.logHandler.log("[" + i.eventName + "] subscriber " + i.id + " failed: " + e.getMessage());
+            }
         }
-        sb.replace(sb.lastIndexOf(" | "), sb.length(), "");
-        sb.append("]");
+        return false;
+    }
 
-        machine.logHandler.log("[" + eventName + "] event triggered: " + sb);
+    public Event getEvent(String name) {
+        return eventIndex.get(name);
     }
 
-    public void triggerEvent(String eventName, LuaParamData data) {
-        Event event = null;
-        DiskFile eventHandler = null;
+    /**
+     * Gets the handler file for an event. A handler sitting in a folder named after the event's type is used first,
+     * otherwise any handler with the event's name is
+     *
+     * @param eventName Name of the event
+     * @return The handler, null if there isn't one
+     */
+    public DiskFile getEventHandler(String eventName) {
+        List<VirtualFile> candidates = handlerIndex.get(eventName);
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
 
-        for (Event i : eventList) {
-            if (i.eventName.equals(eventName)) {
-                event = i;
+        Event event = eventIndex.get(eventName);
+        if (event != null && event.eventType != null && candidates.size() > 1) {
+            for (VirtualFile i : candidates) {
+                if (i.parent != null && event.eventType.equals(i.parent._name)) {
+                    return i.trueFile;
+                }
             }
         }
 
+        try {
+            return candidates.get(0).trueFile;
+        } catch (IndexOutOfBoundsException e) {
+            // Removed while we were looking
+            return null;
+        }
+    }
+
+    /**
+     * Triggers an event, calling a handler with the name and data given. You should not really be calling this function
+     *
+     * @param eventName Name of the event to trigger
+     * @param payload Keyed data merged over the event's own data and passed to the handler as params
+     * @return Whether or not the event was registered and had a handler or subscriber to run
+     */
+    public boolean triggerEvent(String eventName, LuaTable payload) {
+        Event event = getEvent(eventName);
         if (event == null) {
-            return;
+            return false;
         }
 
-        for (DiskFile i : eventHandlers) {
-            if (i.fileName.equals(eventName + ".lua")) {
-                eventHandler = i;
-            }
+        List<Subscription> subs = subscriptions.get(eventName);
+        DiskFile eventHandler = getEventHandler(eventName);
+        if (eventHandler == null && subs == null) {
+            return false;
+        }
+        // Subscribers run in their process's globals, which are only safe to touch from the machine's tick while the
+        // process is parked. Triggered from anywhere else, the event waits in the queue instead
+        if (subs != null && !events.isDraining()) {
+            return enqueue(eventName, payload, false);
         }
 
-        if (eventHandler == null) {
+        LuaTable params = withTerminal(LuaParamData.copyInto(event.paramTable(), payload));
+        boolean consumed = subs != null && notifySubscribers(subs, params);
+        if (!consumed && eventHandler != null) {
+            eventHandler.execute(machine, params);
+        }
+
+        machine.logHandler.log("[" + eventName + "] event triggered: " + describe(payload));
+        return true;
+    }
+
+    /**
+     * Triggers an event, calling a handler with the name and data given. You should not really be calling this function
+     *
+     * @param eventName Name of the event to trigger
+     * @param data Data to include in execution globals
+     * @return Whether or not the event was registered and had a handler to run
+     */
+    public boolean triggerEvent(String eventName, List<String> data) {
+        return triggerEvent(eventName, LuaParamData.toKeyedTable(data));
+    }
+
+    public void triggerEvent(String eventName, LuaParamData data) {
+        if (getEvent(eventName) == null) {
             return;
         }
 
-        IOComponent t = machine.defaultStream.component;
-        if (t instanceof Terminal) {
-            eventHandler.execute(machine, data.addTable("terminal", t.toTable()));
-        } else {
-            eventHandler.execute(machine, data);
+        DiskFile eventHandler = getEventHandler(eventName);
+        if (eventHandler == null) {
+            return;
         }
 
+        runHandler(eventHandler, data.table);
+
         machine.logHandler.log("[" + eventName + "] event triggered: " + "[custom params]");
     }
 
@@ -182,24 +711,77 @@ public class EventHandler {
      *
      * @param eventName Name of the event to trigger
      * @param data Data to include in execution globals
+     * @return Whether or not the event was registered and had a handler to run
      */
-    public void triggerEvent(String eventName, String[] data) {
-        triggerEvent(eventName, Arrays.asList(data));
+    public boolean triggerEvent(String eventName, String[] data) {
+        return triggerEvent(eventName, Arrays.asList(data));
     }
 
-    public void handleEvents() {
-        if (events.size() > 0) {
-            String[] str = events.get(0);
-            triggerEvent(str[0], Serializable.getListMembers(str[1]));
-            events.remove(0);
+    /**
+     * Runs a handler with the given params, adding the terminal if output is going to one
+     *
+     * @param eventHandler Handler to run
+     * @param params Table passed as params
+     */
+    private void runHandler(DiskFile eventHandler, LuaTable params) {
+        eventHandler.execute(machine, withTerminal(params));
+    }
+
+    /**
+     * Adds the terminal to a params table if output is going to one
+     *
+     * @param params Params table
+     * @return The same table
+     */
+    private LuaTable withTerminal(LuaTable params) {
+        IOComponent t = machine.defaultStream.component;
+        if (t instanceof Terminal) {
+            params.set("terminal", t.toTable());
         }
+        return params;
     }
 
-    public boolean registerEvent(Event event) {
-        for (Event i : eventList) {
-            if (i.eventName.equals(event.eventName)) {
+    /**
+     * Formats a payload for the log
+     *
+     * @param payload Payload to describe
+     * @return The payload as "[key: value | key: value]"
+     */
+    private static String describe(LuaTable payload) {
+        StringBuilder sb = new StringBuilder("[");
+        for (Varargs n = payload.next(LuaValue.NIL); !n.arg1().isnil(); n = payload.next(n.arg1())) {
+            if (sb.length() > 1) {
+                sb.append(" | ");
+            }
+            sb.append(n.arg1().tojstring()).append(": ").append(n.arg(2).istable() ? "[table]" : n.arg(2).tojstring());
+        }
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Handles a batch of queued events in the order they were added, the rest wait for the next tick
+     */
+    public void handleEvents() {
+        events.drain(e -> {
+            LuaTable payload = release(e);
+            // Stats are only kept for registered events, otherwise every name a script queues would leave an entry behind
+            if (getEvent(e.eventName) == null) {
+                return false;
+            }
+            EventStats s = getStats(e.eventName);
+            long start = System.nanoTime();
+            s.wait.record(start - e.enqueuedNanos);
+            if (!triggerEvent(e.eventName, payload)) {
                 return false;
             }
+            s.run.record(System.nanoTime() - start);
+            return true;
+        });
+    }
+
+    public boolean registerEvent(Event event) {
+        if (eventIndex.putIfAbsent(event.eventName, event) != null) {
+            return false;
         }
         eventList.add(event);
         return true;
@@ -0,0 +1,375 @@
+package com.morticia.compsim.Machine.Event;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Lock-free queue of pending events. Any thread can add to it, only the machine's tick drains it
+ * <p>
+ * Items go into one of several lanes, each with a weight. Draining goes round the lanes taking up to each lane's weight
+ * at a time, so a busy lane can't hold up the others and even the lightest lane still gets a turn. With one lane it's
+ * a plain FIFO
+ * <p>
+ * The queue can be given a capacity, once it's full new items either push out the oldest one, get dropped themselves, or
+ * make the thread adding them wait for room. Waiting is only ever done for a short while and never by the thread that
+ * drains the queue, since that would be waiting on itself, or by a scheduler worker, since that would hold up every other
+ * machine on it
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/3/22
+ */
+
+public class EventQueue<T> {
+    private final ConcurrentLinkedQueue<T>[] lanes;
+    public final int[] weights;
+    // ConcurrentLinkedQueue#size walks the whole queue, so depth is tracked separately
+    private final AtomicInteger depth;
+    private final AtomicIntegerArray laneDepths;
+
+    // Where draining left off, only touched by the thread draining so the next drain picks up the same round
+    private int laneCursor;
+    private int laneCredit;
+
+    // Most events handled in one tick, anything past this waits for the next tick
+    public volatile int batchSize;
+
+    public final AtomicLong enqueued;
+    public final AtomicLong handled;
+    // Items that were taken off the queue but had nothing registered to handle them. Not lost to overflow, that's counted
+    // by rejected and evicted
+    public final AtomicLong unhandled;
+    // Ticks that hit the batch size and left events behind
+    public final AtomicLong overflows;
+
+    /**
+     * What happens to an item added to a full queue
+     */
+    public enum Overflow {
+        // The item at the front is thrown away to make room
+        drop_oldest,
+        // The new item is thrown away
+        drop_newest,
+        // The thread adding waits for room, up to blockMillis, and then the new item is thrown away
+        block;
+
+        public static Overflow fromString(String s) {
+            for (Overflow i : values()) {
+                if (i.name().equalsIgnoreCase(s)) {
+                    return i;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Most items waiting at once, 0 for no limit
+    public volatile int capacity;
+    public volatile Overflow overflowPolicy;
+    public volatile long blockMillis = 100;
+    // Called with items pushed out by drop_oldest
+    public volatile Consumer<T> evictionListener;
+
+    // Items thrown away because the queue was full, new ones and old ones pushed out
+    public final AtomicLong rejected;
+    public final AtomicLong evicted;
+    // Times a producer had to wait for room
+    public final AtomicLong blocked;
+
+    // Thread currently draining, it can't wait on itself so anything it adds to a full queue is dropped
+    private volatile Thread drainer;
+
+    /**
+     * Constructor
+     *
+     * @param batchSize Most events handled per drain
+     */
+    public EventQueue(int batchSize) {
+        this(batchSize, 0, Overflow.drop_oldest, new int[] {1});
+    }
+
+    /**
+     * Constructor
+     *
+     * @param batchSize Most events handled per drain
+     * @param capacity Most items waiting at once, 0 for no limit
+     * @param overflowPolicy What happens to items added once it's full
+     * @param weights Weight of each lane, lane 0 first. Items from a lane are drained up to its weight at a time
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public EventQueue(int batchSize, int capacity, Overflow overflowPolicy, int[] weights) {
+        this.weights = new int[Math.max(1, weights.length)];
+        this.lanes = new ConcurrentLinkedQueue[this.weights.length];
+        for (int i = 0; i < this.weights.length; i++) {
+            this.weights[i] = i < weights.length ? Math.max(1, weights[i]) : 1;
+            this.lanes[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.laneDepths = new AtomicIntegerArray(this.weights.length);
+        this.laneCursor = 0;
+        this.laneCredit = this.weights[0];
+        this.depth = new AtomicInteger(0);
+        this.batchSize = Math.max(1, batchSize);
+
+        this.enqueued = new AtomicLong(0);
+        this.handled = new AtomicLong(0);
+        this.unhandled = new AtomicLong(0);
+        this.overflows = new AtomicLong(0);
+
+        this.capacity = Math.max(0, capacity);
+        this.overflowPolicy = overflowPolicy == null ? Overflow.drop_oldest : overflowPolicy;
+        this.rejected = new AtomicLong(0);
+        this.evicted = new AtomicLong(0);
+        this.blocked = new AtomicLong(0);
+    }
+
+    /**
+     * Adds an item to the back of the queue, following the overflow policy if it's full
+     *
+     * @param item Item to add
+     * @return Whether or not the item was added
+     */
+    public boolean offer(T item) {
+        return offer(item, true);
+    }
+
+    /**
+     * Adds an item to the back of the first lane, following the overflow policy if it's full
+     *
+     * @param item Item to add
+     * @param mayBlock Whether or not the calling thread is allowed to wait for room, threads that other work depends on
+     *                 (like the timer wheel) shouldn't
+     * @return Whether or not the item was added
+     */
+    public boolean offer(T item, boolean mayBlock) {
+        return offer(item, 0, mayBlock);
+    }
+
+    /**
+     * Adds an item to the back of a lane, following the overflow policy if it's full
+     *
+     * @param item Item to add
+     * @param lane Lane to add it to, out of range lanes go in the last one
+     * @param mayBlock Whether or not the calling thread is allowed to wait for room, threads that other work depends on
+     *                 (like the timer wheel) shouldn't
+     * @return Whether or not the item was added
+     */
+    public boolean offer(T item, int lane, boolean mayBlock) {
+        int l = Math.max(0, Math.min(lane, lanes.length - 1));
+        int cap = capacity;
+        if (cap > 0 && depth.get() >= cap && !makeRoom(cap, mayBlock)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        lanes[l].offer(item);
+        laneDepths.incrementAndGet(l);
+        depth.incrementAndGet();
+        enqueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Makes space in a full queue according to the overflow policy
+     *
+     * @param cap Capacity being enforced
+     * @param mayBlock Whether or not the calling thread is allowed to wait
+     * @return Whether or not there's room now
+     */
+    private boolean makeRoom(int cap, boolean mayBlock) {
+        switch (overflowPolicy) {
+            case drop_oldest:
+                while (depth.get() >= cap) {
+                    // Room is made in the least important lane first
+                    T old = pollLowest();
+                    if (old == null) {
+                        break;
+                    }
+                    evicted.incrementAndGet();
+                    Consumer<T> listener = evictionListener;
+                    if (listener != null) {
+                        listener.accept(old);
+                    }
+                }
+                return true;
+            case block:
+                Thread current = Thread.currentThread();
+                // Parking a pool worker stalls the machines queued behind it, so those always fall through to dropping
+                if (!mayBlock || current == drainer || current instanceof ForkJoinWorkerThread) {
+                    return false;
+                }
+                blocked.incrementAndGet();
+                long deadline = System.nanoTime() + blockMillis * 1_000_000L;
+                while (depth.get() >= cap) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || current.isInterrupted()) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, Math.min(left, 1_000_000L));
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Same as offer, here so callers used to a list still work
+     *
+     * @param item Item to add
+     * @return Whether or not the item was added
+     */
+    public boolean add(T item) {
+        return offer(item);
+    }
+
+    /**
+     * Takes the item at the front of the first lane that has one
+     *
+     * @return The item, null if the queue is empty
+     */
+    public T poll() {
+        for (int i = 0; i < lanes.length; i++) {
+            T item = poll(i);
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the item at the front of the last lane that has one
+     *
+     * @return The item, null if the queue is empty
+     */
+    private T pollLowest() {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            T item = poll(i);
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the item at the front of a lane
+     *
+     * @param lane Lane to take from
+     * @return The item, null if the lane is empty
+     */
+    public T poll(int lane) {
+        T item = lanes[lane].poll();
+        if (item != null) {
+            laneDepths.decrementAndGet(lane);
+            depth.decrementAndGet();
+        }
+        return item;
+    }
+
+    /**
+     * Hands up to batchSize items to the consumer, going round the lanes by weight. Items in the same lane come out in
+     * the order they were added
+     *
+     * @param consumer What to do with each item, returning whether or not it actually got handled. Items it returns false
+     *                 for are counted as unhandled rather than handled
+     * @return Number of items taken off the queue
+     */
+    public int drain(Predicate<T> consumer) {
+        int limit = batchSize;
+        int n = 0;
+        int ran = 0;
+        // Lanes found empty in a row, once it's all of them there's nothing left
+        int idle = 0;
+        drainer = Thread.currentThread();
+        try {
+            while (n < limit && idle < lanes.length) {
+                if (laneCredit <= 0) {
+                    laneCursor = (laneCursor + 1) % lanes.length;
+                    laneCredit = weights[laneCursor];
+                }
+                T item = poll(laneCursor);
+                if (item == null) {
+                    laneCredit = 0;
+                    idle++;
+                    continue;
+                }
+                idle = 0;
+                laneCredit--;
+                n++;
+                if (consumer.test(item)) {
+                    ran++;
+                } else {
+                    unhandled.incrementAndGet();
+                }
+            }
+        } finally {
+            drainer = null;
+            handled.addAndGet(ran);
+        }
+        if (n == limit && !isEmpty()) {
+            overflows.incrementAndGet();
+        }
+        return n;
+    }
+
+    /**
+     * Whether or not the calling thread is the one draining this queue right now
+     *
+     * @return True if called from inside the consumer passed to drain
+     */
+    public boolean isDraining() {
+        return Thread.currentThread() == drainer;
+    }
+
+    /**
+     * Gets the number of items waiting
+     *
+     * @return Current queue depth
+     */
+    public int size() {
+        return depth.get();
+    }
+
+    /**
+     * Gets the number of items waiting in a lane
+     *
+     * @param lane Lane to check
+     * @return Current lane depth
+     */
+    public int size(int lane) {
+        return laneDepths.get(lane);
+    }
+
+    public boolean isEmpty() {
+        for (ConcurrentLinkedQueue<T> i : lanes) {
+            if (!i.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lanes.length; i++) {
+            sb.append(i == 0 ? "" : "/").append(size(i));
+        }
+        return "depth: " + size() +
+                (lanes.length > 1 ? " (" + sb + ")" : "") +
+                " | enqueued: " + enqueued.get() +
+                " | handled: " + handled.get() +
+                " | unhandled: " + unhandled.get() +
+                " | overflows: " + overflows.get() +
+                " | capacity: " + (capacity > 0 ? capacity + " (" + overflowPolicy.name() + ")" : "unbounded") +
+                " | rejected: " + rejected.get() +
+                " | evicted: " + evicted.get() +
+                " | blocked: " + blocked.get();
+    }
+}
@@ -0,0 +1,38 @@
+package com.morticia.compsim.Machine.Event;
+
+import org.luaj.vm2.LuaTable;
+
+/**
+ * How long one event waits in the queue and how long its handlers take to run
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/9/22
+ */
+
+public class EventStats {
+    public final String eventName;
+    // From being queued to being taken off the queue
+    public final LatencyHistogram wait;
+    // Subscribers and the handler file together, only recorded when something ran
+    public final LatencyHistogram run;
+
+    public EventStats(String eventName) {
+        this.eventName = eventName;
+        this.wait = new LatencyHistogram();
+        this.run = new LatencyHistogram();
+    }
+
+    public LuaTable toTable() {
+        LuaTable table = new LuaTable();
+        table.set("event_name", eventName);
+        table.set("wait", wait.toTable());
+        table.set("run", run.toTable());
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return eventName + ": wait [" + wait + "] run [" + run + "]";
+    }
+}
@@ -0,0 +1,110 @@
+package com.morticia.compsim.Machine.Event;
+
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with power of two buckets, cheap enough to record every event with
+ * <p>
+ * Bucket i holds durations from 2^i up to 2^(i+1) microseconds, bucket 0 holds everything under 2 microseconds.
+ * Percentiles are read off the buckets, so they're only accurate to within a factor of two, which is plenty for spotting
+ * a machine that's falling behind
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/9/22
+ */
+
+public class LatencyHistogram {
+    public static final int bucketCount = 32;
+
+    private final AtomicLongArray buckets;
+    public final AtomicLong count;
+    public final AtomicLong totalNanos;
+    public final AtomicLong maxNanos;
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(bucketCount);
+        this.count = new AtomicLong(0);
+        this.totalNanos = new AtomicLong(0);
+        this.maxNanos = new AtomicLong(0);
+    }
+
+    /**
+     * Records one duration
+     *
+     * @param nanos Duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long n = Math.max(0, nanos);
+        long micros = n / 1000;
+        int bucket = micros <= 1 ? 0 : Math.min(bucketCount - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(n);
+        maxNanos.accumulateAndGet(n, Math::max);
+    }
+
+    /**
+     * Estimates a percentile from the buckets
+     *
+     * @param p Percentile from 0 to 1
+     * @return Upper edge of the bucket the percentile falls in, in microseconds, capped at the largest duration seen
+     */
+    public long percentileMicros(double p) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * p));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return Math.min(1L << (i + 1), Math.max(1, maxNanos.get() / 1000));
+            }
+        }
+        return maxNanos.get() / 1000;
+    }
+
+    public long meanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n / 1000;
+    }
+
+    /**
+     * Converts this to a lua table of counts and percentiles, all times in microseconds
+     *
+     * @return The table
+     */
+    public LuaTable toTable() {
+        LuaTable table = new LuaTable();
+        table.set("count", count.get());
+        table.set("mean_us", meanMicros());
+        table.set("p50_us", percentileMicros(0.5));
+        table.set("p90_us", percentileMicros(0.9));
+        table.set("p99_us", percentileMicros(0.99));
+        table.set("max_us", maxNanos.get() / 1000);
+        LuaTable b = new LuaTable();
+        for (int i = 0; i < bucketCount; i++) {
+            b.set(i + 1, LuaValue.valueOf(buckets.get(i)));
+        }
+        table.set("buckets", b);
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return "n " + count.get() +
+                " | p50 " + formatMicros(percentileMicros(0.5)) +
+                " | p99 " + formatMicros(percentileMicros(0.99)) +
+                " | max " + formatMicros(maxNanos.get() / 1000);
+    }
+
+    private static String formatMicros(long micros) {
+        return micros < 1000 ? micros + "us" : String.format("%.1fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,35 @@
+package com.morticia.compsim.Machine.Event;
+
+import org.luaj.vm2.LuaTable;
+
+/**
+ * An event waiting in a machine's queue. The payload is handed to the handler as is, nothing is converted to a string
+ * on the way
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/3/22
+ */
+
+public class QueuedEvent {
+    public final String eventName;
+    public LuaTable payload;
+    // Number of events folded into this one by coalescing, only touched under the event handler's coalescing lock
+    public int count = 1;
+    // Whether or not this is the slot other events of the same name are being folded into
+    public boolean coalesced = false;
+    // When this went in the queue, for measuring how long it waited
+    public long enqueuedNanos;
+
+    /**
+     * Constructor
+     *
+     * @param eventName Name of the event to trigger
+     * @param payload Keyed data passed to the handler, merged over the event's own data
+     */
+    public QueuedEvent(String eventName, LuaTable payload) {
+        this.eventName = eventName;
+        this.payload = payload == null ? new LuaTable() : payload;
+        this.enqueuedNanos = System.nanoTime();
+    }
+}
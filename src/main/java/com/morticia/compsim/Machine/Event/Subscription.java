@@ -0,0 +1,54 @@
+package com.morticia.compsim.Machine.Event;
+
+import com.morticia.compsim.Machine.Process.MachineProcess;
+import org.luaj.vm2.LuaFunction;
+
+/**
+ * A lua function subscribed to an event. It's called straight from the event handler with the globals it was made in,
+ * so there's no file to find or compile and no new sandbox to set up
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/8/22
+ */
+
+public class Subscription implements Comparable<Subscription> {
+    public final int id;
+    public final String eventName;
+    public final LuaFunction function;
+    // Process that subscribed, the subscription goes away when it stops. Null if it wasn't made from a process
+    public final MachineProcess owner;
+    // Lower runs first, subscriptions with the same order run in the order they were made
+    public final int order;
+
+    /**
+     * Constructor
+     *
+     * @param id Id used to unsubscribe, also breaks ties in order
+     * @param eventName Name of the event
+     * @param function Function to call with the event's params
+     * @param owner Process that subscribed, null if there isn't one
+     * @param order Where this runs relative to other subscribers
+     */
+    public Subscription(int id, String eventName, LuaFunction function, MachineProcess owner, int order) {
+        this.id = id;
+        this.eventName = eventName;
+        this.function = function;
+        this.owner = owner;
+        this.order = order;
+    }
+
+    /**
+     * Whether or not this should still be called, subscriptions made by a process end with it
+     *
+     * @return True if the owner is still running or there isn't one
+     */
+    public boolean isLive() {
+        return owner == null || owner.isRunning();
+    }
+
+    @Override
+    public int compareTo(Subscription o) {
+        return order != o.order ? Integer.compare(order, o.order) : Integer.compare(id, o.id);
+    }
+}
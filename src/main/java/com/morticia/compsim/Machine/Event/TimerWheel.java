@@ -0,0 +1,329 @@
+package com.morticia.compsim.Machine.Event;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel for delayed and periodic work, shared by every machine
+ * <p>
+ * The first level has 256 slots one tick wide, each level above has 64 slots as wide as the whole level below it. Timers
+ * go in the lowest level their deadline fits in and get moved down a level whenever the level below wraps around, so
+ * adding and cancelling are constant time no matter how many timers are pending. Any thread can add or cancel, those are
+ * handed to the wheel's own thread through queues so the buckets are only ever touched by one thread
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/7/22
+ */
+
+public class TimerWheel {
+    public static final TimerWheel shared = new TimerWheel(10);
+
+    private static final int firstBits = 8;
+    private static final int levelBits = 6;
+    private static final int levels = 4;
+    // Furthest out a timer can be placed, anything later waits in the top level and gets placed again
+    private static final long maxDelta = (1L << (firstBits + levelBits * (levels - 1))) - 1;
+
+    public final long tickMillis;
+    private final long tickNanos;
+
+    // [level][slot] -> first timer in the bucket
+    private final Timeout[][] buckets;
+    private long currentTick;
+    private long startNanos;
+
+    private final ConcurrentLinkedQueue<Timeout> added;
+    private final ConcurrentLinkedQueue<Timeout> cancelled;
+    // Timers added and not yet fired or cancelled
+    public final AtomicInteger pending;
+
+    private volatile Thread thread;
+
+    /**
+     * Constructor
+     *
+     * @param tickMillis How long each tick of the wheel is, timers fire on tick boundaries
+     */
+    public TimerWheel(long tickMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.tickNanos = this.tickMillis * 1_000_000L;
+        this.buckets = new Timeout[levels][];
+        for (int i = 0; i < levels; i++) {
+            buckets[i] = new Timeout[i == 0 ? 1 << firstBits : 1 << levelBits];
+        }
+        this.added = new ConcurrentLinkedQueue<>();
+        this.cancelled = new ConcurrentLinkedQueue<>();
+        this.pending = new AtomicInteger(0);
+    }
+
+    /**
+     * A single timer. Only the wheel's thread touches the links, anyone can cancel
+     */
+    public static class Timeout {
+        private static final AtomicIntegerFieldUpdater<Timeout> stateUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        public final Runnable task;
+        public final long periodTicks;
+        final TimerWheel wheel;
+        // Tick this fires on
+        long deadline;
+
+        // 0 = waiting to be added, 1 = in a bucket, 2 = cancelled, 3 = done
+        volatile int state;
+        Timeout prev;
+        Timeout next;
+        int level;
+        int slot;
+
+        Timeout(TimerWheel wheel, Runnable task, long periodTicks) {
+            this.wheel = wheel;
+            this.task = task;
+            this.periodTicks = periodTicks;
+        }
+
+        boolean casState(int expect, int update) {
+            return stateUpdater.compareAndSet(this, expect, update);
+        }
+
+        /**
+         * Stops this timer from firing again
+         *
+         * @return Whether or not it was still pending
+         */
+        public boolean cancel() {
+            return wheel.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return state == 2;
+        }
+
+        public boolean isDone() {
+            return state >= 2;
+        }
+    }
+
+    /**
+     * Runs a task once after a delay
+     *
+     * @param task What to run, on the wheel's thread so it should be quick
+     * @param delayMillis How long to wait in milliseconds
+     * @return The timer, can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        return schedule(task, delayMillis, 0);
+    }
+
+    /**
+     * Runs a task after a delay and then every period after that
+     *
+     * @param task What to run, on the wheel's thread so it should be quick
+     * @param delayMillis How long to wait before the first run in milliseconds
+     * @param periodMillis Time between runs in milliseconds, 0 to only run once
+     * @return The timer, can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delayMillis, long periodMillis) {
+        ensureStarted();
+        long period = periodMillis > 0 ? Math.max(1, (periodMillis + tickMillis - 1) / tickMillis) : 0;
+        Timeout t = new Timeout(this, task, period);
+        // Deadline is worked out against the wall clock so it doesn't matter how far behind the wheel's thread is
+        long elapsed = System.nanoTime() - startNanos;
+        t.deadline = (elapsed + Math.max(0, delayMillis) * 1_000_000L + tickNanos - 1) / tickNanos;
+        pending.incrementAndGet();
+        added.offer(t);
+        return t;
+    }
+
+    /**
+     * Cancels a timer
+     *
+     * @param t Timer to cancel
+     * @return Whether or not it was still pending
+     */
+    public boolean cancel(Timeout t) {
+        while (true) {
+            int s = t.state;
+            if (s >= 2) {
+                return false;
+            }
+            if (t.casState(s, 2)) {
+                pending.decrementAndGet();
+                // Still in the added queue means the wheel's thread will skip it, otherwise it has to be unlinked
+                if (s == 1) {
+                    cancelled.offer(t);
+                }
+                return true;
+            }
+        }
+    }
+
+    private void ensureStarted() {
+        if (thread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (thread == null) {
+                startNanos = System.nanoTime();
+                Thread t = new Thread(this::run, "TimerWheel");
+                t.setDaemon(true);
+                thread = t;
+                t.start();
+            }
+        }
+    }
+
+    /**
+     * Loop for the wheel's thread, catches up on any ticks that have passed and then parks until the next one
+     */
+    private void run() {
+        while (!Thread.interrupted()) {
+            long target = (System.nanoTime() - startNanos) / tickNanos;
+            while (currentTick < target) {
+                drainQueues();
+                advance();
+            }
+            drainQueues();
+            long next = startNanos + (currentTick + 1) * tickNanos;
+            LockSupport.parkNanos(this, Math.max(1, next - System.nanoTime()));
+        }
+    }
+
+    private void drainQueues() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            unlink(t);
+        }
+        while ((t = added.poll()) != null) {
+            if (t.casState(0, 1)) {
+                place(t);
+            }
+        }
+    }
+
+    /**
+     * Moves the wheel forward one tick, cascading higher levels down when a lower one wraps and firing what's due
+     */
+    private void advance() {
+        currentTick++;
+        int index = (int) (currentTick & ((1 << firstBits) - 1));
+        if (index == 0) {
+            for (int level = 1; level < levels; level++) {
+                int shift = firstBits + levelBits * (level - 1);
+                int slot = (int) ((currentTick >>> shift) & ((1 << levelBits) - 1));
+                cascade(level, slot);
+                if (slot != 0) {
+                    break;
+                }
+            }
+        }
+
+        Timeout t = buckets[0][index];
+        buckets[0][index] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            t.prev = null;
+            t.next = null;
+            if (t.deadline > currentTick) {
+                // Only happens for timers past the furthest level, they go back in
+                place(t);
+            } else {
+                fire(t);
+            }
+            t = next;
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout t = buckets[level][slot];
+        buckets[level][slot] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            t.prev = null;
+            t.next = null;
+            place(t);
+            t = next;
+        }
+    }
+
+    private void fire(Timeout t) {
+        if (t.periodTicks > 0) {
+            if (t.state != 1) {
+                return;
+            }
+            t.deadline = currentTick + t.periodTicks;
+            place(t);
+        } else if (t.casState(1, 3)) {
+            pending.decrementAndGet();
+        } else {
+            return;
+        }
+
+        try {
+            t.task.run();
+        } catch (Exception e) {
+            System.out.println("[TimerWheel]: timer failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Puts a timer in the bucket its deadline falls in
+     *
+     * @param t Timer to place
+     */
+    private void place(Timeout t) {
+        if (t.state != 1) {
+            return;
+        }
+        long deadline = Math.max(t.deadline, currentTick + 1);
+        long delta = deadline - currentTick;
+        if (delta > maxDelta) {
+            deadline = currentTick + maxDelta;
+            delta = maxDelta;
+        }
+
+        int level;
+        int slot;
+        if (delta < (1L << firstBits)) {
+            level = 0;
+            slot = (int) (deadline & ((1 << firstBits) - 1));
+        } else {
+            level = 1;
+            int shift = firstBits;
+            while (level < levels - 1 && delta >= (1L << (shift + levelBits))) {
+                level++;
+                shift += levelBits;
+            }
+            slot = (int) ((deadline >>> shift) & ((1 << levelBits) - 1));
+        }
+
+        t.level = level;
+        t.slot = slot;
+        t.prev = null;
+        t.next = buckets[level][slot];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[level][slot] = t;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else if (buckets[t.level][t.slot] == t) {
+            buckets[t.level][t.slot] = t.next;
+        } else {
+            // Already taken out of its bucket
+            return;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+    }
+}
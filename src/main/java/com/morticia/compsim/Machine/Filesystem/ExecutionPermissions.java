@@ -21,11 +21,17 @@ public class ExecutionPermissions {
 
     public List<String> libAccess;
 
+    // Most instructions and milliseconds a single execution can use, -1 uses the machine's limit and 0 is unlimited
+    public long instructionBudget;
+    public long timeBudget;
+
     /**
      * Constructor
      */
     public ExecutionPermissions() {
         this.libAccess = new ArrayList<>();
+        this.instructionBudget = -1;
+        this.timeBudget = -1;
     }
 
     /**
@@ -48,7 +54,8 @@ public class ExecutionPermissions {
     public boolean equals(Object obj) {
         try {
             ExecutionPermissions var = (ExecutionPermissions) obj;
-            return var.canExecute == canExecute && var.kernelTableAccess == kernelTableAccess && var.libAccess.equals(libAccess);
+            return var.canExecute == canExecute && var.kernelTableAccess == kernelTableAccess && var.libAccess.equals(libAccess)
+                    && var.instructionBudget == instructionBudget && var.timeBudget == timeBudget;
         } catch (Exception e) {
             return false;
         }
@@ -63,7 +70,9 @@ public class ExecutionPermissions {
     public String toString() {
         return "Can Execute: " + canExecute +
                 " |  Sees Kernel Tables: " + kernelTableAccess +
-                " |  Library Access: " + libAccess;
+                " |  Library Access: " + libAccess +
+                " |  Instruction Budget: " + instructionBudget +
+                " |  Time Budget: " + timeBudget;
     }
 
     public void fromString(String val) {
@@ -77,6 +86,10 @@ public class ExecutionPermissions {
             } else if (i.startsWith("Library Access: ")) {
                 String[] str_1 = Serializable.getListMembers(i.replaceFirst("Library Access: ", ""));
                 setLibAccess(str_1);
+            } else if (i.startsWith("Instruction Budget: ")) {
+                this.instructionBudget = Long.parseLong(i.replaceFirst("Instruction Budget: ", ""));
+            } else if (i.startsWith("Time Budget: ")) {
+                this.timeBudget = Long.parseLong(i.replaceFirst("Time Budget: ", ""));
             }
         }
     }
@@ -90,6 +103,8 @@ public class ExecutionPermissions {
             table2.set(table2.length(), LuaValue.valueOf(i));
         }
         table.set("lib_access", table2);
+        table.set("instruction_budget", LuaValue.valueOf(instructionBudget));
+        table.set("time_budget", LuaValue.valueOf(timeBudget));
         return table;
     }
 }
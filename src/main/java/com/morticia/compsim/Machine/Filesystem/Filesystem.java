@@ -1,8 +1,19 @@
 package com.morticia.compsim.Machine.Filesystem;
 
+import com.morticia.compsim.Machine.Event.TimerWheel;
 import com.morticia.compsim.Machine.Machine;
+import com.morticia.compsim.Machine.MachineIOStream.MachineIOStream;
+import com.morticia.compsim.Machine.Process.MachineProcess;
+import com.morticia.compsim.Machine.User.User;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This could all be handled in the machine, technically, but I thought separating it would help with clutter
@@ -21,6 +32,25 @@ public class Filesystem {
     // Like a working directory in linux
     public VirtualFolder currFolder;
 
+    // Goes up whenever a folder is removed, replaced or renamed, cached paths from before that aren't trusted
+    public final AtomicLong structureVersion = new AtomicLong(0);
+    public final PathCache pathCache = new PathCache(defaultPathCacheSize);
+    public static final int defaultPathCacheSize = 512;
+
+    // Files that were parsed from the metafile or changed before their folder was loaded (or after it was evicted), by
+    // full path. The folder picks them up instead of making fresh ones when it loads
+    public final Map<String, VirtualFile> pendingFiles = new ConcurrentHashMap<>();
+    // Unchanged files from evicted folders, by full path. Held weakly so they go once nothing uses them
+    private final Map<String, WeakReference<VirtualFile>> detachedFiles = new ConcurrentHashMap<>();
+
+    // Folders not used for this long get their children dropped, 0 never drops them
+    public static final long defaultEvictIdleMillis = 300_000;
+    public long evictIdleMillis = 0;
+    public final AtomicLong evicted = new AtomicLong(0);
+    // Set by the eviction timer, the actual eviction happens on the machine's next tick
+    public volatile boolean evictionDue = false;
+    private TimerWheel.Timeout evictionTimer;
+
     /**
      * Constructor
      *
@@ -29,7 +59,7 @@ public class Filesystem {
     public Filesystem(Machine machine) {
         this.machine = machine;
 
-        // Initializes data from disk recursively
+        // Only root is made here, folders read their children from disk the first time they're used
         this.root = new VirtualFolder(this);
 
         this.currFolder = root;
@@ -54,73 +84,123 @@ public class Filesystem {
     }
 
     /**
-     * Gets the folder at the provided path
+     * Bumps the structure version, call whenever a folder is removed, replaced or renamed so cached paths get rebuilt
+     */
+    public void structureChanged() {
+        structureVersion.incrementAndGet();
+    }
+
+    /**
+     * Turns a path into an absolute one with no empty, '.' or '..' parts. Relative paths start from currFolder and '..'
+     * stops at root
      *
-     * @param path Path to folder to get
-     * @return Folder described by path. Null if folder doesn't exist
+     * @param path Path to normalise
+     * @return The absolute path, "/" for root and no trailing slash otherwise
      */
-    public VirtualFolder getFolder(String path) {
-        if (path.equals("/")) {
-            return root;
+    public String normalize(String path) {
+        String p = path.strip();
+        if (!p.startsWith("/")) {
+            VirtualFolder cwd = currFolder;
+            p = (cwd == null ? "/" : cwd.getPath()) + p;
         }
-
-        VirtualFolder f;
-
-        path = path.strip();
-        if (path.startsWith("/")) {
-            f = root;
-            path = path.replaceFirst("/", "");
-        } else {
-            f = currFolder;
+        // Already normal paths are by far the most common, so they skip the rebuild
+        if (isNormal(p)) {
+            return p;
         }
-        String[] str_list = path.split("/");
 
-        for (int i = 0; i < str_list.length; i++) {
-            String i_str = str_list[i];
-            if (f == null) {
-                return null;
-            } else if (i + 1 == str_list.length) {
-                return f.getFolder(i_str);
+        List<String> parts = new ArrayList<>();
+        for (String i : p.split("/")) {
+            if (i.isEmpty() || i.equals(".")) {
+                continue;
+            }
+            if (i.equals("..")) {
+                if (!parts.isEmpty()) {
+                    parts.remove(parts.size() - 1);
+                }
             } else {
-                f = f.getFolder(i_str);
+                parts.add(i);
             }
         }
+        if (parts.isEmpty()) {
+            return "/";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String i : parts) {
+            sb.append('/').append(i);
+        }
+        return sb.toString();
+    }
 
-        return null;
+    private static boolean isNormal(String p) {
+        if (p.equals("/")) {
+            return true;
+        }
+        if (p.endsWith("/") || p.contains("//")) {
+            return false;
+        }
+        for (int i = p.indexOf("/."); i != -1; i = p.indexOf("/.", i + 1)) {
+            int end = i + 2;
+            if (end == p.length() || p.charAt(end) == '/'
+                    || (p.charAt(end) == '.' && (end + 1 == p.length() || p.charAt(end + 1) == '/'))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Get the file at the provided path
+     * Walks a normalised path down from root, using and filling the path cache
      *
-     * @param path Path to wanted file
-     * @return The file at the provided path
+     * @param path Normalised path to a folder
+     * @return The folder, null if it doesn't exist
      */
-    public VirtualFile getFile(String path) {
-        VirtualFolder f;
-
-        path = path.strip();
-        if (path.startsWith("/")) {
-            f = root;
-            path = path.replaceFirst("/", "");
-        } else {
-            f = currFolder;
+    private VirtualFolder resolveFolder(String path) {
+        if (path.equals("/")) {
+            return root;
+        }
+        long version = structureVersion.get();
+        VirtualFolder f = pathCache.get(path, version);
+        if (f != null) {
+            return f;
         }
-        String[] str_list = path.split("/");
 
-        String i_str;
-        for (int i = 0; i < str_list.length; i++) {
-            i_str = str_list[i];
-            if (f == null) {
-                return null;
-            }
-            if (i + 1 == str_list.length) {
-                return f.getFile(i_str);
-            } else {
-                f = f.getFolder(i_str);
-            }
+        // Start from the deepest cached parent instead of root if there is one
+        int cut = path.lastIndexOf('/');
+        VirtualFolder parent = cut == 0 ? root : resolveFolder(path.substring(0, cut));
+        if (parent == null) {
+            return null;
+        }
+        f = parent.getFolder(path.substring(cut + 1));
+        if (f != null) {
+            pathCache.put(path, f, version);
         }
+        return f;
+    }
 
-        return null;
+    /**
+     * Gets the folder at the provided path
+     *
+     * @param path Path to folder to get, absolute or relative to currFolder
+     * @return Folder described by path. Null if folder doesn't exist
+     */
+    public VirtualFolder getFolder(String path) {
+        return resolveFolder(normalize(path));
+    }
+
+    /**
+     * Get the file at the provided path
+     *
+     * @param path Path to wanted file, absolute or relative to currFolder
+     * @return The file at the provided path
+     */
+    public VirtualFile getFile(String path) {
+        String p = normalize(path);
+        if (p.equals("/")) {
+            return null;
+        }
+        int cut = p.lastIndexOf('/');
+        VirtualFolder parent = cut == 0 ? root : resolveFolder(p.substring(0, cut));
+        return parent == null ? null : parent.getFile(p.substring(cut + 1));
     }
 
     /**
@@ -143,6 +223,21 @@ public class Filesystem {
         }
     }
 
+    /**
+     * Gets the folder a path would be in
+     *
+     * @param path Normalised path, not root
+     * @return The parent folder, null if it doesn't exist
+     */
+    private VirtualFolder getParentFolder(String path) {
+        int cut = path.lastIndexOf('/');
+        return cut == 0 ? root : resolveFolder(path.substring(0, cut));
+    }
+
+    private static String getLastName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
     /**
      * Adds an object to the given path
      *
@@ -151,18 +246,8 @@ public class Filesystem {
      * @return Whether or not the operation was successful
      */
     public boolean addObject(String path, FilesystemObject o) {
-        String[] str = path.split("/");
-        StringBuilder parent_path_builder = new StringBuilder();
-        String name = str[str.length - 1];
-        VirtualFolder parent;
-        if (str.length < 2) {
-            parent = root;
-        } else {
-            for (int i = 0; i < str.length - 1; i++) {
-                parent_path_builder.append(str[i]).append("/");
-            }
-            parent = getFolder(parent_path_builder.toString());
-        }
+        String p = normalize(path);
+        VirtualFolder parent = p.equals("/") ? null : getParentFolder(p);
         if (parent == null) {
             return false;
         } else {
@@ -177,22 +262,12 @@ public class Filesystem {
      * @return Whether or not the operation was successful
      */
     public boolean addFolder(String path) {
-        String[] str = path.split("/");
-        StringBuilder parent_path_builder = new StringBuilder();
-        String name = str[str.length - 1];
-        VirtualFolder parent;
-        if (str.length < 2) {
-            parent = root;
-        } else {
-            for (int i = 0; i < str.length - 1; i++) {
-                parent_path_builder.append(str[i]).append("/");
-            }
-            parent = getFolder(parent_path_builder.toString());
-        }
+        String p = normalize(path);
+        VirtualFolder parent = p.equals("/") ? null : getParentFolder(p);
         if (parent == null) {
             return false;
         } else {
-            return parent.addFolder(new VirtualFolder(this, parent, name));
+            return parent.addFolder(new VirtualFolder(this, parent, getLastName(p)));
         }
     }
 
@@ -203,22 +278,12 @@ public class Filesystem {
      * @return Whether or not the operation was successful
      */
     public boolean addFile(String path) {
-        String[] str = path.split("/");
-        StringBuilder parent_path_builder = new StringBuilder();
-        String name = str[str.length - 1];
-        VirtualFolder parent;
-        if (str.length < 2) {
-            parent = root;
-        } else {
-            for (int i = 0; i < str.length - 1; i++) {
-                parent_path_builder.append(str[i]).append("/");
-            }
-            parent = getFolder(parent_path_builder.toString());
-        }
+        String p = normalize(path);
+        VirtualFolder parent = p.equals("/") ? null : getParentFolder(p);
         if (parent == null) {
             return false;
         } else {
-            return parent.addFile(new VirtualFile(parent, name));
+            return parent.addFile(new VirtualFile(parent, getLastName(p)));
         }
     }
 
@@ -229,22 +294,161 @@ public class Filesystem {
      * @return Whether or not the operation was successful
      */
     public boolean removeObject(String path) {
-        String[] str = path.split("/");
-        StringBuilder parent_path_builder = new StringBuilder();
-        String name = str[str.length - 1];
-        VirtualFolder parent;
-        if (str.length < 2) {
-            parent = root;
+        String p = normalize(path);
+        VirtualFolder parent = p.equals("/") ? null : getParentFolder(p);
+        if (parent == null) {
+            return false;
         } else {
-            for (int i = 0; i < str.length - 1; i++) {
-                parent_path_builder.append(str[i]).append("/");
+            return parent.removeObject(getLastName(p));
+        }
+    }
+
+    /**
+     * Gets a folder only if it and every folder above it is already loaded, nothing is read from disk
+     *
+     * @param path Path to the folder
+     * @return The folder, null if it doesn't exist or isn't loaded
+     */
+    public VirtualFolder findLoadedFolder(String path) {
+        VirtualFolder f = root;
+        for (String i : normalize(path).split("/")) {
+            if (i.isEmpty()) {
+                continue;
+            }
+            if (!f.isLoaded()) {
+                return null;
+            }
+            f = f.folders.get(i);
+            if (f == null) {
+                return null;
             }
-            parent = getFolder(parent_path_builder.toString());
         }
-        if (parent == null) {
-            return false;
+        return f;
+    }
+
+    /**
+     * Puts a file that was parsed from the metafile in its folder, or holds on to it until the folder is loaded
+     *
+     * @param file The parsed file
+     */
+    public void attachParsed(VirtualFile file) {
+        VirtualFolder parent = findLoadedFolder(file.getParentPath());
+        if (parent != null && parent.isLoaded()) {
+            file.parent = parent;
+            parent.replaceFile(file);
         } else {
-            return parent.removeObject(name);
+            file.parent = null;
+            pendingFiles.put(file.getParentPath() + file._name, file);
+        }
+    }
+
+    /**
+     * Remembers a file from an evicted folder so it can be reused if it's still around when the folder loads again
+     *
+     * @param path Full path to the file
+     * @param file The file
+     */
+    public void detach(String path, VirtualFile file) {
+        detachedFiles.put(path, new WeakReference<>(file));
+    }
+
+    /**
+     * Takes back a file from an evicted folder
+     *
+     * @param path Full path to the file
+     * @return The file, null if it was never detached or nothing was holding on to it
+     */
+    public VirtualFile takeDetached(String path) {
+        WeakReference<VirtualFile> ref = detachedFiles.remove(path);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Drops the children of every folder that hasn't been used in a while so they're read from disk again next time.
+     * Root, /evn and anything a user or process is sitting in stay loaded
+     *
+     * @param idleMillis How long a folder has to have gone unused in milliseconds
+     */
+    public void evictIdle(long idleMillis) {
+        Set<VirtualFolder> pinned = getPinnedFolders();
+        long before = System.currentTimeMillis() - idleMillis;
+        long start = evicted.get();
+        detachedFiles.values().removeIf(r -> r.get() == null);
+        for (VirtualFolder i : new ArrayList<>(root.folders.values())) {
+            i.unload(before, pinned);
+        }
+        long count = evicted.get() - start;
+        if (count > 0) {
+            machine.logHandler.log("Evicted " + count + " idle folders");
+        }
+    }
+
+    /**
+     * Evicts idle folders if the eviction timer has gone off since last time, called every tick
+     */
+    public void evictIfDue() {
+        if (evictionDue) {
+            evictionDue = false;
+            evictIdle(evictIdleMillis);
+        }
+    }
+
+    /**
+     * Sets how long folders can go unused before being evicted, and how often that's checked
+     *
+     * @param millis Idle time in milliseconds, 0 to never evict
+     */
+    public synchronized void setEvictIdleMillis(long millis) {
+        this.evictIdleMillis = millis;
+        if (evictionTimer != null) {
+            evictionTimer.cancel();
+            evictionTimer = null;
+        }
+        if (millis > 0) {
+            evictionTimer = TimerWheel.shared.schedule(() -> {
+                evictionDue = true;
+                machine.wake();
+            }, millis, millis);
+        }
+    }
+
+    /**
+     * Gets every folder that's in use, along with the folders above them
+     *
+     * @return The folders that can't be evicted
+     */
+    private Set<VirtualFolder> getPinnedFolders() {
+        Set<VirtualFolder> pinned = new HashSet<>();
+        pin(pinned, root);
+        pin(pinned, events);
+        pin(pinned, currFolder);
+        for (User i : machine.userHandler.users) {
+            pin(pinned, i.homeFolder);
+        }
+        if (machine.processHandler != null) {
+            if (machine.processHandler.stdEntry != null) {
+                pin(pinned, machine.processHandler.stdEntry.parent);
+            }
+            for (MachineProcess i : machine.processHandler.processes) {
+                pin(pinned, i.workingDir);
+                if (i.rootFile != null) {
+                    pin(pinned, i.rootFile.parent);
+                }
+                if (i.currFile != null) {
+                    pin(pinned, i.currFile.parent);
+                }
+            }
+        }
+        MachineIOStream stream = machine.defaultStream;
+        if (stream != null && stream.component instanceof VirtualFile f) {
+            pin(pinned, f.parent);
+        }
+        return pinned;
+    }
+
+    private static void pin(Set<VirtualFolder> pinned, VirtualFolder f) {
+        for (; f != null && pinned.add(f); f = f.parent) {
+            // Nothing, add does the work
         }
     }
 
@@ -256,6 +460,7 @@ public class Filesystem {
     public boolean executeScript(String path) {
         VirtualFile f = getFile(path);
         if (f != null) {
+            f.touch();
             f.trueFile.execute(machine);
             return true;
         } else {
@@ -265,5 +470,9 @@ public class Filesystem {
 
     public void saveAll() {
         root.saveChildren();
+        // Files waiting on their folder to load aren't in the tree, but their metadata still has to be saved
+        for (VirtualFile i : pendingFiles.values()) {
+            machine.dataHandler.add(i);
+        }
     }
 }
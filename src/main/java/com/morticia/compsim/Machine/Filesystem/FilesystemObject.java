@@ -1,6 +1,7 @@
 package com.morticia.compsim.Machine.Filesystem;
 
 import com.morticia.compsim.Util.Lua.Lib.IOLib;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 
@@ -8,7 +9,27 @@ public class FilesystemObject {
     public Filesystem filesystem;
     public String _name;
     public VirtualFolder parent;
+    // Path of the parent, only used while parent isn't set (parsed objects whose folder hasn't been loaded yet)
+    public String parentPath;
     public FilePerms perms;
+    // Set when something that gets saved to the metafile is changed, so the object is kept if its folder is evicted
+    public boolean modified;
+
+    // Binding table handed to lua, built the first time it's asked for and shared until something in it changes
+    private volatile LuaTable luaTable;
+
+    // Absolute path and the filesystem structure version it was built at
+    private volatile CachedPath cachedPath;
+
+    private static class CachedPath {
+        final String path;
+        final long version;
+
+        CachedPath(String path, long version) {
+            this.path = path;
+            this.version = version;
+        }
+    }
 
     public FilesystemObject(Filesystem filesystem, String _name, VirtualFolder parent) {
         this.filesystem = filesystem;
@@ -17,11 +38,70 @@ public class FilesystemObject {
         this.perms = new FilePerms(filesystem.machine.userHandler.currUser);
     }
 
+    /**
+     * Gets the absolute path to this object, only rebuilt after the filesystem's structure changes
+     *
+     * @return The path
+     */
     public String getPath() {
-        return parent.getPath() + _name;
+        if (filesystem == null) {
+            return buildPath();
+        }
+        long version = filesystem.structureVersion.get();
+        CachedPath c = cachedPath;
+        if (c == null || c.version != version) {
+            c = new CachedPath(buildPath(), version);
+            cachedPath = c;
+        }
+        return c.path;
+    }
+
+    /**
+     * Builds the absolute path to this object from its parent's
+     *
+     * @return The path
+     */
+    protected String buildPath() {
+        return getParentPath() + _name;
     }
 
+    /**
+     * Gets the absolute path of the folder this object is in
+     *
+     * @return The parent's path, ending in a slash
+     */
+    public String getParentPath() {
+        VirtualFolder p = parent;
+        return p != null ? p.getPath() : parentPath;
+    }
+
+    /**
+     * Gets the lua binding for this object, the same read-only table is handed out every time
+     *
+     * @return The binding table
+     */
     public LuaTable toTable() {
+        LuaTable table = luaTable;
+        if (table == null) {
+            table = new ReadOnlyLuaTable(buildTable());
+            luaTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Drops the cached binding table, call this whenever something the table shows (like the name) changes
+     */
+    public void invalidateTable() {
+        luaTable = null;
+    }
+
+    /**
+     * Builds a fresh binding table, subclasses add their own functions on top of this
+     *
+     * @return The table
+     */
+    protected LuaTable buildTable() {
         LuaTable table = new LuaTable();
         table.set("is_null", LuaValue.valueOf(false));
         table.set("type", "filesystem_object");
@@ -0,0 +1,80 @@
+package com.morticia.compsim.Machine.Filesystem;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of normalised folder paths to folders
+ * <p>
+ * Every entry belongs to a version of the filesystem's structure. Once anything that could move or remove a folder
+ * happens the version goes up and the whole cache is dropped the next time it's used. Only hits are cached, so adding a
+ * folder never needs to clear anything
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/10/22
+ */
+
+public class PathCache {
+    public final int capacity;
+
+    private final LinkedHashMap<String, VirtualFolder> entries;
+    private long version;
+
+    public long hits;
+    public long misses;
+
+    /**
+     * Constructor
+     *
+     * @param capacity Most paths kept, least recently used ones go first
+     */
+    public PathCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        // Access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VirtualFolder> eldest) {
+                return size() > PathCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks up a path
+     *
+     * @param path Normalised path
+     * @param currentVersion Current structure version of the filesystem
+     * @return The folder, null if it isn't cached
+     */
+    public synchronized VirtualFolder get(String path, long currentVersion) {
+        if (version != currentVersion) {
+            entries.clear();
+            version = currentVersion;
+        }
+        VirtualFolder f = entries.get(path);
+        if (f == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return f;
+    }
+
+    /**
+     * Caches a path, skipped if the structure changed since the lookup started
+     *
+     * @param path Normalised path
+     * @param folder Folder it resolved to
+     * @param lookupVersion Structure version read before the folder was looked up
+     */
+    public synchronized void put(String path, VirtualFolder folder, long lookupVersion) {
+        if (version == lookupVersion) {
+            entries.put(path, folder);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
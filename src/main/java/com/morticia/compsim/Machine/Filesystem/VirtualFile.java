@@ -51,20 +51,44 @@ public class VirtualFile extends FilesystemObject implements Serializable, IOCom
 
     @Override
     public String getDesig() {
-        return this.parent.getPath() + "->" + this._name;
+        return getParentPath() + "->" + this._name;
+    }
+
+    /**
+     * Marks the folder this is in as just used, so reading and writing the file keeps it from being evicted
+     */
+    public void touch() {
+        VirtualFolder p = parent;
+        if (p != null) {
+            p.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Whether or not this file has anything that isn't the default for a file freshly read from disk, if so it can't be
+     * thrown away and read again
+     *
+     * @return True if it's been changed
+     */
+    public boolean isModified() {
+        return modified || (trueFile != null && (trueFile.isDirty() || trueFile.durability != DiskFile.Durability.write_behind
+                || !trueFile.execPerms.equals(DiskFile.defaultExecPerms(trueFile.extension))));
     }
 
     @Override
     public String serialize() { // TODO: 7/7/22 Find way to properly initialize filesystem data from this
         String var = prepParams(new String[][]{
-                {"parent_folder", parent.getPath()},
+                {"parent_folder", getParentPath()},
                 {"file_name", _name},
                 {"owner", perms.owner.userName},
                 {"group", perms.group.groupName},
                 {"file_perms", perms.getPerms()},
                 {"can_execute", Boolean.toString(trueFile.execPerms.canExecute)},
                 {"kernel_table_access", Boolean.toString(trueFile.execPerms.kernelTableAccess)},
-                {"lib_access", trueFile.execPerms.libAccess.toString()}
+                {"instruction_budget", Long.toString(trueFile.execPerms.instructionBudget)},
+                {"time_budget", Long.toString(trueFile.execPerms.timeBudget)},
+                {"lib_access", trueFile.execPerms.libAccess.toString()},
+                {"durability", trueFile.durability.name()}
         });
         return getPrefix() + var;
     }
@@ -77,10 +101,13 @@ public class VirtualFile extends FilesystemObject implements Serializable, IOCom
                 case "n/a":
                     continue;
                 case "parent_folder":
-                    this.parent = filesystem.getFolder(i[1]);
+                    // The folder isn't looked up so parsing doesn't load it, attachParsed sorts that out at the end
+                    this.parentPath = i[1];
                     break;
                 case "file_name":
                     this._name = i[1];
+                    invalidateTable();
+                    filesystem.structureChanged();
                     break;
                 case "owner":
                     this.perms.owner = filesystem.machine.userHandler.getUser(i[1]);
@@ -90,7 +117,7 @@ public class VirtualFile extends FilesystemObject implements Serializable, IOCom
                     break;
                 case "file_perms":
                     this.perms.initPerms(i[1]);
-                    this.trueFile = new DiskFile(filesystem.getDiskDir() + parent.getPath(), _name, true);
+                    this.trueFile = new DiskFile(filesystem.getDiskDir() + parentPath, _name, true);
                     break;
                 case "can_execute":
                     trueFile.execPerms.canExecute = Boolean.parseBoolean(i[1]);
@@ -98,46 +125,65 @@ public class VirtualFile extends FilesystemObject implements Serializable, IOCom
                 case "kernel_table_access":
                     trueFile.execPerms.kernelTableAccess = Boolean.parseBoolean(i[1]);
                     break;
+                case "instruction_budget":
+                    trueFile.execPerms.instructionBudget = Long.parseLong(i[1]);
+                    break;
+                case "time_budget":
+                    trueFile.execPerms.timeBudget = Long.parseLong(i[1]);
+                    break;
                 case "lib_access":
                     trueFile.execPerms.libAccess = new ArrayList<>(List.of(Serializable.getListMembers(i[1])));
                     break;
+                case "durability":
+                    DiskFile.Durability d = DiskFile.Durability.fromString(i[1]);
+                    if (d != null) {
+                        trueFile.durability = d;
+                    }
+                    break;
             }
         }
-        this.parent.replaceFile(this);
+        this.modified = true;
+        filesystem.attachParsed(this);
     }
 
     @Override
-    public LuaTable toTable() {
-        LuaTable table = super.toTable();
+    protected LuaTable buildTable() {
+        LuaTable table = super.buildTable();
         table.set("type", "file");
         table.set("get_contents", new IOLib.get_contents(this));
         table.set("set_contents", new IOLib.set_contents(this));
         table.set("execute", new IOLib.execute(this));
         table.set("set_output", new IOLib.set_output(this));
+        table.set("set_durability", new IOLib.set_durability(this));
+        table.set("flush", new IOLib.flush(this));
         return table;
     }
 
     int index = 0;
     @Override
     public String readLine() {
+        touch();
         if (index + 1 >= trueFile.getNumLines()) {
             index = 0;
             return null;
         }
         index++;
-        return trueFile.contents.get(index);
+        return trueFile.getContents().get(index);
     }
 
     @Override
     public void writeLine(String data) {
+        touch();
         trueFile.appendLine(data);
     }
 
     @Override
     public LuaTable getAllData() {
         LuaTable table = new LuaTable();
-        for (int i = 0; i < trueFile.contents.size(); i++) {
-            table.set(i + 1, trueFile.contents.get(i));
+        touch();
+        List<String> contents = trueFile.getContents();
+        for (int i = 0; i < contents.size(); i++) {
+            table.set(i + 1, contents.get(i));
         }
         return table;
     }
@@ -1,5 +1,6 @@
 package com.morticia.compsim.Machine.Filesystem;
 
+import com.morticia.compsim.Machine.Event.EventHandler;
 import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Util.Constants;
 import com.morticia.compsim.Util.Disk.DataHandler.Serializable;
@@ -9,7 +10,11 @@ import org.luaj.vm2.LuaTable;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A data container that makes up the body of filesystem organization
@@ -22,8 +27,15 @@ import java.util.List;
 public class VirtualFolder extends FilesystemObject implements Serializable {
     public final boolean isRoot;
 
-    public List<VirtualFolder> folders;
-    public List<VirtualFile> files;
+    // Children by name, kept in the order they were added so listings stay the same. These are only filled in once the
+    // folder is loaded, go through getFolders/getFiles or the lookups rather than reading them straight
+    public Map<String, VirtualFolder> folders;
+    public Map<String, VirtualFile> files;
+
+    // Children are read from disk the first time anything asks for them, and dropped again by eviction
+    private volatile boolean loaded;
+    // Last time the children were used, for eviction
+    public volatile long lastAccess;
 
     /**
      * Constructor
@@ -33,28 +45,36 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @param name Name of this folder
      */
     public VirtualFolder(Filesystem filesystem, VirtualFolder parent, String name) {
+        this(filesystem, parent, name, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param filesystem The filesystem this is attached to
+     * @param parent The parent folder of this object
+     * @param name Name of this folder
+     * @param attach Whether or not to add this to the parent, false when the parent is the one loading it
+     */
+    private VirtualFolder(Filesystem filesystem, VirtualFolder parent, String name, boolean attach) {
         super(filesystem, name, parent);
         this.isRoot = false;
 
-        this.folders = new ArrayList<>();
-        this.files = new ArrayList<>();
+        this.folders = new LinkedHashMap<>();
+        this.files = new LinkedHashMap<>();
 
-        // Attempt to initialize data from actual disk
+        // Children already on disk are read in when first needed, a new folder has none to read
         File f = new File(DiskUtil.getObjectivePath(filesystem.getDiskDir() + getPath()));
         if (f.exists() && f.isDirectory()) {
-            File[] fs = DiskUtil.getFolderChildren(filesystem.getDiskDir() + getPath());
-            for (File i : fs) {
-                if (i.isFile()) {
-                    addFile(new VirtualFile(this, i.getName()));
-                } else {
-                    addFolder(new VirtualFolder(filesystem, this, i.getName()));
-                }
-            }
+            this.loaded = false;
         } else {
             f.mkdir();
+            this.loaded = true;
         }
 
-        parent.addFolder(this);
+        if (attach) {
+            parent.addFolder(this);
+        }
     }
 
     /**
@@ -68,23 +88,13 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
 
         this.filesystem.root = this;
 
-        this.folders = new ArrayList<>();
-        this.files = new ArrayList<>();
+        this.folders = new LinkedHashMap<>();
+        this.files = new LinkedHashMap<>();
 
         this.perms = new FilePerms(filesystem.machine.userHandler.currUser);
 
-        // Attempt to initialize data from actual disk
-        File f = new File(DiskUtil.getObjectivePath(filesystem.getDiskDir()));
-        if (f.exists() && f.isDirectory()) {
-            File[] fs = DiskUtil.getFolderChildren(filesystem.getDiskDir());
-            for (File i : fs) {
-                if (i.isFile()) {
-                    addFile(new VirtualFile(this, i.getName()));
-                } else {
-                    addFolder(new VirtualFolder(filesystem, this, i.getName()));
-                }
-            }
-        }
+        // Read in on first use like every other folder
+        this.loaded = false;
     }
 
     /**
@@ -99,19 +109,150 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
         this.filesystem = machine.filesystem;
         this.parent = null;
 
-        this.folders = new ArrayList<>();
-        this.files = new ArrayList<>();
+        this.folders = new LinkedHashMap<>();
+        this.files = new LinkedHashMap<>();
+        this.loaded = true;
 
         this.perms = new FilePerms(filesystem.machine.userHandler.currUser);
     }
 
     /**
-     * Get the path to this folder from root (is a virtual path)
+     * Whether or not the children have been read from disk
+     *
+     * @return True if they're in memory
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Reads this folder's children from disk if that hasn't happened yet. Subfolders are made but not loaded, and files
+     * that had metadata parsed for them before the folder was loaded get that metadata back
+     */
+    public void ensureLoaded() {
+        lastAccess = System.currentTimeMillis();
+        if (loaded) {
+            return;
+        }
+        List<VirtualFolder> newFolders = new ArrayList<>();
+        List<VirtualFile> newFiles = new ArrayList<>();
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            String dir = filesystem.getDiskDir() + getPath();
+            File[] fs = DiskUtil.getFolderChildren(dir);
+            if (fs != null) {
+                String path = getPath();
+                for (File i : fs) {
+                    if (i.isFile()) {
+                        // A file from before an eviction is reused if anything still has it, so there's never two
+                        // objects (and two buffers) for the same file
+                        VirtualFile file = filesystem.pendingFiles.remove(path + i.getName());
+                        if (file == null) {
+                            file = filesystem.takeDetached(path + i.getName());
+                        }
+                        if (file == null) {
+                            file = new VirtualFile(this, i.getName());
+                        } else {
+                            file.parent = this;
+                        }
+                        if (files.putIfAbsent(file._name, file) == null) {
+                            newFiles.add(file);
+                        }
+                    } else {
+                        VirtualFolder folder = new VirtualFolder(filesystem, this, i.getName(), false);
+                        if (folders.putIfAbsent(folder._name, folder) == null) {
+                            newFolders.add(folder);
+                        }
+                    }
+                }
+            }
+            loaded = true;
+        }
+
+        EventHandler h = getEventIndex();
+        if (h != null) {
+            for (VirtualFolder i : newFolders) {
+                h.registerEventHandlers(i);
+            }
+            for (VirtualFile i : newFiles) {
+                h.addEventHandler(i);
+            }
+        }
+    }
+
+    /**
+     * Drops this folder's children so they're read from disk again next time, along with every loaded folder under it.
+     * Nothing is dropped unless the whole subtree can be, since a cached path can skip straight to a folder deep down
+     *
+     * @param idleBefore Only folders not used since this time (in milliseconds) are unloaded
+     * @param pinned Folders that are in use and have to stay, along with everything above them
+     * @return Whether or not this folder was unloaded
+     */
+    public synchronized boolean unload(long idleBefore, Set<VirtualFolder> pinned) {
+        if (!loaded || isRoot || pinned.contains(this) || lastAccess > idleBefore) {
+            return !loaded;
+        }
+        // Files with their contents in memory are still being used
+        for (VirtualFile i : files.values()) {
+            if (i.trueFile != null && i.trueFile.isLoaded()) {
+                return false;
+            }
+        }
+        boolean all = true;
+        for (VirtualFolder i : folders.values()) {
+            all &= i.unload(idleBefore, pinned);
+        }
+        if (!all) {
+            return false;
+        }
+        // Changed files would lose their changes if they were read again, so they wait to be picked back up. The rest are
+        // only remembered weakly, in case something like a process's lua table is still holding on to them
+        String path = getPath();
+        for (VirtualFile i : files.values()) {
+            i.parentPath = path;
+            if (i.isModified()) {
+                filesystem.pendingFiles.put(path + i._name, i);
+            } else {
+                filesystem.detach(path + i._name, i);
+            }
+        }
+        folders.clear();
+        files.clear();
+        loaded = false;
+        filesystem.evicted.incrementAndGet();
+        filesystem.structureChanged();
+        return true;
+    }
+
+    /**
+     * Gets the subfolders, loading them if needed
+     *
+     * @return The subfolders in the order they were added
+     */
+    public Collection<VirtualFolder> getFolders() {
+        ensureLoaded();
+        return folders.values();
+    }
+
+    /**
+     * Gets the files, loading them if needed
+     *
+     * @return The files in the order they were added
+     */
+    public Collection<VirtualFile> getFiles() {
+        ensureLoaded();
+        return files.values();
+    }
+
+    /**
+     * Builds the path to this folder from root (is a virtual path)
      *
      * @return The path to this folder
      */
     @Override
-    public String getPath() {
+    protected String buildPath() {
         if (isRoot) {
             return "/";
         } else {
@@ -126,16 +267,18 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @return Whether or not the operation was successful
      */
     public boolean addFolder(VirtualFolder folder) {
+        ensureLoaded();
         // Don't add two folders of the same name
-        for (VirtualFolder i : folders) {
-            if (i._name.equals(folder._name)) {
-                return false;
-            }
+        if (folders.putIfAbsent(folder._name, folder) != null) {
+            return false;
         }
-        folders.add(folder);
         if (folder.parent == null) {
             folder.parent = this;
         }
+        EventHandler h = getEventIndex();
+        if (h != null) {
+            h.registerEventHandlers(folder);
+        }
         return true;
     }
 
@@ -146,13 +289,15 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @return Whether or not operation was successful
      */
     public boolean addFile(VirtualFile file) {
+        ensureLoaded();
         // Don't add two files of the same name
-        for (VirtualFile i : files) {
-            if (i._name.equals(file._name)) {
-                return false;
-            }
+        if (files.putIfAbsent(file._name, file) != null) {
+            return false;
+        }
+        EventHandler h = getEventIndex();
+        if (h != null) {
+            h.addEventHandler(file);
         }
-        files.add(file);
         return true;
     }
 
@@ -172,12 +317,8 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @return Folder object corresponding to the given name, null if not found
      */
     public VirtualFolder getFolder(String f_name) {
-        for (VirtualFolder i : folders) {
-            if (i._name.equals(f_name)) {
-                return i;
-            }
-        }
-        return null;
+        ensureLoaded();
+        return folders.get(f_name);
     }
 
     /**
@@ -187,12 +328,8 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @return File object corresponding to the given name, null if not found
      */
     public VirtualFile getFile(String f_name) {
-        for (VirtualFile i : files) {
-            if (i._name.equals(f_name)) {
-                return i;
-            }
-        }
-        return null;
+        ensureLoaded();
+        return files.get(f_name);
     }
 
     /**
@@ -221,10 +358,13 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @param f File to replace with
      */
     public void replaceFile(VirtualFile f) {
-        for (int i = 0; i < files.size(); i++) {
-            if (files.get(i)._name.equals(f._name)) {
-                files.set(i, f);
-            }
+        // Only replaces, a file that isn't here already isn't added
+        ensureLoaded();
+        VirtualFile old = files.replace(f._name, f);
+        EventHandler h = getEventIndex();
+        if (old != null && h != null) {
+            h.removeEventHandler(old);
+            h.addEventHandler(f);
         }
     }
 
@@ -234,10 +374,15 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @param f Folder to replace with
      */
     public void replaceFolder(VirtualFolder f) {
-        for (int i = 0; i < folders.size(); i++) {
-            if (folders.get(i)._name.equals(f._name)) {
-                folders.set(i, f);
-            }
+        ensureLoaded();
+        VirtualFolder old = folders.replace(f._name, f);
+        if (old != null) {
+            filesystem.structureChanged();
+        }
+        EventHandler h = getEventIndex();
+        if (old != null && h != null) {
+            h.unregisterEventHandlers(old);
+            h.registerEventHandlers(f);
         }
     }
 
@@ -248,13 +393,17 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @return Whether or not the operation was successful
      */
     public boolean removeFolder(String name) {
-        for (int i = 0; i < folders.size(); i++) {
-            if (folders.get(i)._name.equals(name)) {
-                folders.remove(i);
-                return true;
-            }
+        ensureLoaded();
+        VirtualFolder old = folders.remove(name);
+        if (old == null) {
+            return false;
         }
-        return false;
+        filesystem.structureChanged();
+        EventHandler h = getEventIndex();
+        if (h != null) {
+            h.unregisterEventHandlers(old);
+        }
+        return true;
     }
 
     /**
@@ -264,13 +413,16 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
      * @return Whether or not the operation was successful
      */
     public boolean removeFile(String name) {
-        for (int i = 0; i < files.size(); i++) {
-            if (files.get(i)._name.equals(name)) {
-                files.remove(i);
-                return true;
-            }
+        ensureLoaded();
+        VirtualFile old = files.remove(name);
+        if (old == null) {
+            return false;
         }
-        return false;
+        EventHandler h = getEventIndex();
+        if (h != null) {
+            h.removeEventHandler(old);
+        }
+        return true;
     }
 
     /**
@@ -288,6 +440,23 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
         return false;
     }
 
+    /**
+     * Gets the event handler that indexes this folder's scripts, only folders under /evn have one
+     *
+     * @return The machine's event handler, null if this folder isn't under /evn
+     */
+    private EventHandler getEventIndex() {
+        if (filesystem == null || filesystem.events == null || filesystem.machine.eventHandler == null) {
+            return null;
+        }
+        for (VirtualFolder f = this; f != null; f = f.parent) {
+            if (f == filesystem.events) {
+                return filesystem.machine.eventHandler;
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return "[" + _name + "] Folder: " + getPath();
@@ -300,10 +469,14 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
         if (!isRoot) {
             filesystem.machine.dataHandler.add(this);
         }
-        for (VirtualFolder i : folders) {
+        // Nothing under a folder that isn't loaded has changed, its entries from the last load are still there
+        if (!loaded) {
+            return;
+        }
+        for (VirtualFolder i : folders.values()) {
             i.saveChildren();
         }
-        for (VirtualFile i : files) {
+        for (VirtualFile i : files.values()) {
             filesystem.machine.dataHandler.add(i);
         }
     }
@@ -315,13 +488,13 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
 
     @Override
     public String getDesig() {
-        return parent.getPath() + "->" + _name;
+        return getParentPath() + "->" + _name;
     }
 
     @Override
     public String serialize() {
         String var = prepParams(new String[][]{
-                {"parent_folder", parent.getPath()},
+                {"parent_folder", getParentPath()},
                 {"folder_name", _name},
                 {"owner", perms.owner.userName},
                 {"group", perms.group.groupName},
@@ -338,10 +511,14 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
                 case "n/a":
                     continue;
                 case "parent_folder":
-                    this.parent = filesystem.getFolder(i[1]);
+                    // Looking the parent up would load it, if it isn't loaded there's nothing to replace anyway
+                    this.parentPath = i[1];
+                    this.parent = filesystem.findLoadedFolder(i[1]);
                     break;
                 case "file_name":
                     this._name = i[1];
+                    invalidateTable();
+                    filesystem.structureChanged();
                     break;
                 case "owner":
                     this.perms.owner = filesystem.machine.userHandler.getUser(i[1]);
@@ -354,12 +531,14 @@ public class VirtualFolder extends FilesystemObject implements Serializable {
                     break;
             }
         }
-        parent.replaceFolder(this);
+        if (parent != null) {
+            parent.replaceFolder(this);
+        }
     }
 
     @Override
-    public LuaTable toTable() {
-        LuaTable table = super.toTable();
+    protected LuaTable buildTable() {
+        LuaTable table = super.buildTable();
         table.set("type", "folder");
         table.set("get_children", new IOLib.get_children(this));
         table.set("remove_child", new IOLib.remove_child(this));
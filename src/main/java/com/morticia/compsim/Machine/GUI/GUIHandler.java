@@ -27,18 +27,21 @@ public class GUIHandler {
         /*
         key pressed, key released, text_entered
          */
-        machine.eventHandler.eventList.add(new Event(machine, "key_pressed", "key"));
-        machine.eventHandler.eventList.add(new Event(machine, "key_released", "key"));
-        machine.eventHandler.eventList.add(new Event(machine, "text_entered", "key"));
+        // Holding a key fires a press for every auto-repeat, so only the newest press and release waiting are handled.
+        // Entered lines are whole commands and are never coalesced. They all go in the interactive lane
+        machine.eventHandler.registerEvent(new Event(machine, "key_pressed", "key").setCoalesce(Event.Coalesce.keep_last, 0));
+        machine.eventHandler.registerEvent(new Event(machine, "key_released", "key").setCoalesce(Event.Coalesce.keep_last, 0));
+        machine.eventHandler.registerEvent(new Event(machine, "text_entered", "key"));
     }
 
     public void registerMouseEvents() {
         /*
         mouse button pressed, mouse scroll, mouse moved
          */
-        machine.eventHandler.eventList.add(new Event(machine, "button_pressed", "mouse"));
-        machine.eventHandler.eventList.add(new Event(machine, "scrolled", "mouse"));
-        machine.eventHandler.eventList.add(new Event(machine, "moved", "mouse"));
+        machine.eventHandler.registerEvent(new Event(machine, "button_pressed", "mouse"));
+        // Scroll amounts add up when merged and only the latest position matters, so these collapse without losing anything
+        machine.eventHandler.registerEvent(new Event(machine, "scrolled", "mouse").setCoalesce(Event.Coalesce.merge, 0));
+        machine.eventHandler.registerEvent(new Event(machine, "moved", "mouse").setCoalesce(Event.Coalesce.keep_last, 0));
     }
 
     // This function is somewhat temporary as graphical capability will be built into lua, however
@@ -48,12 +51,12 @@ public class GUIHandler {
     public void startTerminal() {
         int id = terminals.size();
 
-        RuntimeHandler.ioHandler.events.add(new Event(machine, "start_terminal", Integer.toString(id)));
+        RuntimeHandler.ioHandler.offerEvent(new Event(machine, "start_terminal", Integer.toString(id)));
         // Terminal is added to our side by event handling in IOHandler
     }
 
     public void endTerminal(int id) {
-        RuntimeHandler.ioHandler.events.add(new Event(machine, "end_terminal", Integer.toString(id)));
+        RuntimeHandler.ioHandler.offerEvent(new Event(machine, "end_terminal", Integer.toString(id)));
         this.terminals.removeIf(i -> i.id == id);
     }
 
@@ -66,6 +69,21 @@ public class GUIHandler {
         return null;
     }
 
+    /**
+     * Prints an error to the focused terminal, or to the machine's log when no terminal is open
+     *
+     * @param message Error to show
+     */
+    public void printError(String message) {
+        // Read once, the terminal can be closed from the IO thread at any point
+        Terminal t = p_terminal;
+        if (t != null) {
+            t.println(Terminal.wrapInColor(message, "f7261b"));
+        } else if (machine.logHandler != null) {
+            machine.logHandler.log("Error: " + message);
+        }
+    }
+
     // To avoid sync issues
     public void update() {
         /*if (!qeue.isEmpty()) {
@@ -1,6 +1,7 @@
 package com.morticia.compsim.Machine;
 
 import com.morticia.compsim.Machine.Event.EventHandler;
+import com.morticia.compsim.Machine.Event.EventQueue;
 import com.morticia.compsim.Machine.Filesystem.Filesystem;
 import com.morticia.compsim.Machine.GUI.GUIHandler;
 import com.morticia.compsim.Machine.MachineIOStream.MachineIOStream;
@@ -9,16 +10,22 @@ import com.morticia.compsim.Machine.Networking.NetworkHandler;
 import com.morticia.compsim.Machine.Process.MachineProcess;
 import com.morticia.compsim.Machine.Process.ProcessHandler;
 import com.morticia.compsim.Machine.User.UserHandler;
+import com.morticia.compsim.RuntimeHandler;
 import com.morticia.compsim.Util.Constants;
 import com.morticia.compsim.Util.Disk.DataComponent;
 import com.morticia.compsim.Util.Disk.DataHandler.DataHandler;
 import com.morticia.compsim.Util.Disk.DiskFile;
 import com.morticia.compsim.Util.Disk.DiskUtil;
+import com.morticia.compsim.Util.Disk.WriteBehind;
 import com.morticia.compsim.Util.Log.LogHandler;
+import com.morticia.compsim.Util.Lua.GlobalsTemplate;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
 import org.luaj.vm2.LuaTable;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Object centralizing the factors needed for emulation
@@ -51,6 +58,31 @@ public class Machine {
     public LuaTable machineGlobals;
     public LuaTable kernelGlobals;
 
+    // Shared library sets used to build script globals, keyed by the permissions they were built for
+    public final ConcurrentHashMap<String, GlobalsTemplate> globalsTemplates = new ConcurrentHashMap<>();
+    // Binding table handed to lua
+    private volatile LuaTable luaTable;
+
+    // Most instructions and milliseconds a single script execution can use, 0 is unlimited. Scripts and processes can
+    // set their own in their execution perms
+    public static final long defaultInstructionBudget = 10_000_000;
+    public long instructionBudget = defaultInstructionBudget;
+    public long timeBudget = 0;
+
+    // Most events waiting in this machine's queue and what happens to new ones past that
+    public static final int defaultEventQueueCapacity = 4096;
+    public int eventQueueCapacity = defaultEventQueueCapacity;
+    public EventQueue.Overflow eventOverflowPolicy = EventQueue.Overflow.drop_oldest;
+    // How often event latency stats go in the log in milliseconds, 0 is never
+    public long eventStatsInterval = 0;
+
+    // Set while a tick for this machine is queued or running on the scheduler
+    public final AtomicBoolean scheduled = new AtomicBoolean(false);
+    // Machines aren't handed to the scheduler until the constructor is done
+    public volatile boolean booted = false;
+    // Set once the machine is taken off the scheduler, nothing wakes it after that
+    public volatile boolean removed = false;
+
     /**
      * Constructor
      *
@@ -77,12 +109,16 @@ public class Machine {
         if (!dataHandler.load()) {
             save();
         }
+        loadBudgets();
+        loadEventQueueLimits();
 
         this.kernelGlobals = new LuaTable();
         this.machineGlobals = new LuaTable();
 
         // TODO: 7/4/22 Load events from metafile
         this.eventHandler = new EventHandler(this);
+        this.eventHandler.setStatsLogInterval(eventStatsInterval);
+        this.filesystem.setEvictIdleMillis(Filesystem.defaultEvictIdleMillis);
 
         this.processHandler = new ProcessHandler(this);
 
@@ -90,6 +126,7 @@ public class Machine {
         this.guiHandler = new GUIHandler(this);
         // TODO: 7/5/22 Make it possible to register for events from lua, maybe not loaded from metafile?
         this.guiHandler.registerKeyEvents();
+        this.guiHandler.registerMouseEvents();
 
         defaultStream = new MachineIOStream("null_io", new NullIOComponent());
 
@@ -99,8 +136,16 @@ public class Machine {
         // Execute boot script
         if (filesystem.getFile("boot/boot.lua") != null) {
             filesystem.getFile("boot/boot.lua").trueFile.execPerms.setLibAccess(new String[] {"all"});
+            // Boot waits on the terminal in a loop, so it doesn't get a budget
+            filesystem.getFile("boot/boot.lua").trueFile.execPerms.instructionBudget = 0;
+            filesystem.getFile("boot/boot.lua").trueFile.execPerms.timeBudget = 0;
             filesystem.executeScript("/boot/boot.lua");
         }
+
+        booted = true;
+        if (hasPendingWork()) {
+            wake();
+        }
     }
 
     /**
@@ -116,6 +161,83 @@ public class Machine {
     public void tick() {
         guiHandler.update();
         eventHandler.handleEvents();
+        processHandler.tick();
+        filesystem.evictIfDue();
+    }
+
+    /**
+     * Whether or not this machine has anything to do on its next tick
+     *
+     * @return True if a tick would do work
+     */
+    public boolean hasPendingWork() {
+        return (eventHandler != null && !eventHandler.events.isEmpty())
+                || (filesystem != null && filesystem.evictionDue)
+                || (processHandler != null && processHandler.hasPendingWork());
+    }
+
+    /**
+     * Asks the scheduler to tick this machine, called whenever new work arrives for it
+     */
+    public void wake() {
+        if (booted && RuntimeHandler.machineHandler != null) {
+            RuntimeHandler.machineHandler.scheduler.submit(this);
+        }
+    }
+
+    /**
+     * Reads the script budgets from the metafile, leaving the defaults for anything missing
+     */
+    private void loadBudgets() {
+        try {
+            if (dataHandler.getEntry("instruction_budget") instanceof DataComponent d) {
+                instructionBudget = Long.parseLong(((String) d.data).strip());
+            }
+            if (dataHandler.getEntry("time_budget") instanceof DataComponent d) {
+                timeBudget = Long.parseLong(((String) d.data).strip());
+            }
+        } catch (Exception e) {
+            printError("invalid script budget in metafile");
+        }
+    }
+
+    /**
+     * Reads the event queue capacity and overflow policy from the metafile, leaving the defaults for anything missing
+     */
+    private void loadEventQueueLimits() {
+        try {
+            if (dataHandler.getEntry("event_queue_capacity") instanceof DataComponent d) {
+                eventQueueCapacity = Math.max(0, Integer.parseInt(((String) d.data).strip()));
+            }
+        } catch (Exception e) {
+            printError("invalid event queue capacity in metafile");
+        }
+        try {
+            if (dataHandler.getEntry("event_stats_interval") instanceof DataComponent d) {
+                eventStatsInterval = Math.max(0, Long.parseLong(((String) d.data).strip()));
+            }
+        } catch (Exception e) {
+            printError("invalid event stats interval in metafile");
+        }
+        if (dataHandler.getEntry("event_overflow_policy") instanceof DataComponent d) {
+            EventQueue.Overflow policy = EventQueue.Overflow.fromString(((String) d.data).strip());
+            if (policy != null) {
+                eventOverflowPolicy = policy;
+            } else {
+                printError("invalid event overflow policy in metafile");
+            }
+        }
+    }
+
+    /**
+     * Asks the scheduler to tick this machine after a delay
+     *
+     * @param delayMillis How long to wait in milliseconds
+     */
+    public void wakeAfter(long delayMillis) {
+        if (booted && RuntimeHandler.machineHandler != null) {
+            RuntimeHandler.machineHandler.scheduler.submitLater(this, delayMillis);
+        }
     }
 
     /**
@@ -123,10 +245,21 @@ public class Machine {
      */
     public void save() {
         dataHandler.add(new DataComponent(desig, Constants.str_type, "machine_desig"));
+        dataHandler.add(new DataComponent(Long.toString(instructionBudget), Constants.str_type, "instruction_budget"));
+        dataHandler.add(new DataComponent(Long.toString(timeBudget), Constants.str_type, "time_budget"));
+        if (eventHandler != null) {
+            eventQueueCapacity = eventHandler.events.capacity;
+            eventOverflowPolicy = eventHandler.events.overflowPolicy;
+        }
+        dataHandler.add(new DataComponent(Integer.toString(eventQueueCapacity), Constants.str_type, "event_queue_capacity"));
+        dataHandler.add(new DataComponent(eventOverflowPolicy.name(), Constants.str_type, "event_overflow_policy"));
+        dataHandler.add(new DataComponent(Long.toString(eventStatsInterval), Constants.str_type, "event_stats_interval"));
         dataHandler.add(userHandler);
         userHandler.saveUsers();
         filesystem.saveAll();
         dataHandler.save();
+        // Edits still waiting to be written behind go out with the save
+        WriteBehind.shared.flush(getMachineDir() + "/");
     }
 
     /**
@@ -147,9 +280,19 @@ public class Machine {
         return this.desig;
     }
 
+    /**
+     * Gets the lua binding for this machine, the same read-only table is handed out until the designation changes
+     *
+     * @return The binding table
+     */
     public LuaTable toTable() {
-        LuaTable table = new LuaTable();
-        table.set("name", desig);
+        LuaTable table = luaTable;
+        if (table == null || !table.get("name").tojstring().equals(desig)) {
+            LuaTable t = new LuaTable();
+            t.set("name", desig);
+            table = new ReadOnlyLuaTable(t);
+            luaTable = table;
+        }
         return table;
     }
 }
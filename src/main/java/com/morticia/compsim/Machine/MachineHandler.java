@@ -1,20 +1,27 @@
 package com.morticia.compsim.Machine;
 
+import com.morticia.compsim.Util.Constants;
 import com.morticia.compsim.Util.Disk.DiskUtil;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 public class MachineHandler extends Thread {
     public static int numMachines = 0;
 
     public CopyOnWriteArrayList<Machine> machines;
+    public MachineScheduler scheduler;
+
+    // Ticks per second every machine gets regardless of pending work, 0 means machines are only ticked when woken
+    public volatile int tickRate = 0;
 
     public MachineHandler() {
         super("MachineHandler");
         machines = new CopyOnWriteArrayList<>();
+        scheduler = new MachineScheduler(Runtime.getRuntime().availableProcessors(), Constants.THREAD_PER_MACHINE);
     }
 
     @Override
@@ -32,11 +39,47 @@ public class MachineHandler extends Thread {
             return;
         }
 
+        // Pick up anything that was queued while machines were booting
+        for (Machine i : machines) {
+            if (i.hasPendingWork()) {
+                i.wake();
+            }
+        }
+
+        // Ticks run on the scheduler's workers and machines wake themselves when work arrives, this thread only
+        // has to drive the optional fixed tick rate
+        long next = System.nanoTime();
         while (!Thread.interrupted()) {
+            int rate = tickRate;
+            if (rate <= 0) {
+                LockSupport.park(this);
+                next = System.nanoTime();
+                continue;
+            }
             for (Machine i : machines) {
-                i.tick();
+                scheduler.submit(i);
+            }
+            next += 1_000_000_000L / rate;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            } else {
+                // Fell behind, don't try to catch up with a burst of ticks
+                next = System.nanoTime();
             }
         }
+
+        scheduler.shutdown();
+    }
+
+    /**
+     * Sets the fixed tick rate
+     *
+     * @param rate Ticks per second, 0 to only tick machines when they have work
+     */
+    public void setTickRate(int rate) {
+        this.tickRate = Math.max(0, rate);
+        LockSupport.unpark(this);
     }
 
     public void initDefaultMachines() {
@@ -0,0 +1,239 @@
+package com.morticia.compsim.Machine;
+
+import com.morticia.compsim.Machine.Event.TimerWheel;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads machine ticks over a pool of worker threads so one slow machine doesn't hold up the rest
+ * <p>
+ * A machine is only ever claimed by one worker at a time, so its events are still handled in the order they were queued.
+ * Machines are only submitted when they have work, so an idle machine doesn't cost anything
+ * <p>
+ * In thread per machine mode each machine runs its own loop on its own thread instead, parked whenever there's nothing to
+ * do. Virtual threads are used when the JVM has them (21+), otherwise it falls back to normal threads
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/2/22
+ */
+
+public class MachineScheduler {
+    public ForkJoinPool pool;
+    public int parallelism;
+
+    public final boolean threadPerMachine;
+    public final ConcurrentHashMap<Machine, Thread> machineThreads;
+    private volatile boolean running;
+
+    // Thread.ofVirtual() and the builder methods, looked up once. Null when the JVM doesn't have virtual threads
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderUnstarted;
+
+    static {
+        Method v = null, n = null, u = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            v = Thread.class.getMethod("ofVirtual");
+            n = builder.getMethod("name", String.class);
+            u = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception ignored) {
+            v = null;
+        }
+        ofVirtual = v;
+        builderName = n;
+        builderUnstarted = u;
+    }
+
+    /**
+     * Constructor, uses one worker per available core
+     */
+    public MachineScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param parallelism Number of worker threads machines are ticked on
+     */
+    public MachineScheduler(int parallelism) {
+        this(parallelism, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param parallelism Number of worker threads machines are ticked on
+     * @param threadPerMachine True to give every machine its own thread instead of using the pool
+     */
+    public MachineScheduler(int parallelism, boolean threadPerMachine) {
+        this.threadPerMachine = threadPerMachine;
+        this.machineThreads = new ConcurrentHashMap<>();
+        this.running = true;
+        this.parallelism = Math.max(1, parallelism);
+        // Async mode keeps the local queues FIFO, tick tasks are never joined so there's no reason for LIFO
+        this.pool = new ForkJoinPool(this.parallelism, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("MachineWorker-" + t.getPoolIndex());
+            return t;
+        }, null, true);
+    }
+
+    /**
+     * Queues a tick for the given machine unless one is already queued or running
+     *
+     * @param machine Machine to tick
+     * @return Whether or not a tick was queued
+     */
+    public boolean submit(Machine machine) {
+        // A late wake, timer or tick finishing up would otherwise start a removed machine back up, or hit a shut down pool
+        if (!running || machine.removed) {
+            return false;
+        }
+        if (threadPerMachine) {
+            // Here scheduled just means the machine's thread has a tick to run when it wakes up
+            boolean queued = machine.scheduled.compareAndSet(false, true);
+            if (running) {
+                LockSupport.unpark(machineThreads.computeIfAbsent(machine, this::startMachineThread));
+            }
+            return queued;
+        }
+        if (!machine.scheduled.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            pool.execute(() -> runTick(machine));
+        } catch (RejectedExecutionException e) {
+            // Shut down between the check above and here, the tick never runs so nothing would clear the flag
+            machine.scheduled.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a tick for the given machine after a delay, for things like sleeping processes
+     *
+     * @param machine Machine to tick
+     * @param delayMillis How long to wait before queueing the tick
+     */
+    public void submitLater(Machine machine, long delayMillis) {
+        if (!running || machine.removed) {
+            return;
+        }
+        TimerWheel.shared.schedule(() -> {
+            if (running) {
+                submit(machine);
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Ticks a machine on the current worker and releases it afterwards so it can be claimed again
+     *
+     * @param machine Machine to tick
+     */
+    private void runTick(Machine machine) {
+        try {
+            machine.tick();
+        } catch (Exception e) {
+            System.out.println("[" + machine.id + "/" + machine.desig + "]: tick failed: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            machine.scheduled.set(false);
+        }
+        // Work that arrived while this tick was running couldn't claim the machine, so pick it up here
+        if (machine.hasPendingWork() && !pool.isShutdown()) {
+            submit(machine);
+        }
+    }
+
+    /**
+     * Starts the thread a machine runs on in thread per machine mode
+     *
+     * @param machine Machine the thread is for
+     * @return The thread, already started
+     */
+    private Thread startMachineThread(Machine machine) {
+        Runnable r = () -> runMachine(machine);
+        String name = "Machine-" + machine.desig;
+        Thread t = null;
+        if (ofVirtual != null) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                t = (Thread) builderUnstarted.invoke(builder, r);
+            } catch (Exception ignored) {
+                t = null;
+            }
+        }
+        if (t == null) {
+            t = new Thread(r, name);
+            t.setDaemon(true);
+        }
+        t.start();
+        return t;
+    }
+
+    /**
+     * Loop for a machine's own thread, parks until the machine is submitted and ticks it
+     *
+     * @param machine Machine to run
+     */
+    private void runMachine(Machine machine) {
+        Thread self = Thread.currentThread();
+        while (running && !machine.removed && machineThreads.get(machine) == self) {
+            if (!machine.scheduled.getAndSet(false)) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                machine.tick();
+            } catch (Exception e) {
+                System.out.println("[" + machine.id + "/" + machine.desig + "]: tick failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+            if (machine.hasPendingWork()) {
+                machine.scheduled.set(true);
+            }
+        }
+        // Only does anything if a submit raced with remove and started this thread after the machine was gone
+        machineThreads.remove(machine, self);
+    }
+
+    /**
+     * Stops scheduling a machine, in thread per machine mode this ends its thread
+     *
+     * @param machine Machine to stop scheduling
+     */
+    public void remove(Machine machine) {
+        machine.removed = true;
+        Thread t = machineThreads.remove(machine);
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Stops accepting ticks and waits briefly for the ones already running to finish
+     */
+    public void shutdown() {
+        running = false;
+        for (Thread i : machineThreads.values()) {
+            LockSupport.unpark(i);
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
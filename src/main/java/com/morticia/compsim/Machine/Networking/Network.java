@@ -3,6 +3,7 @@ package com.morticia.compsim.Machine.Networking;
 import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Util.Lua.Lib.NetworkLib;
 import com.morticia.compsim.Util.Lua.LuaLib;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 
@@ -18,6 +19,9 @@ public class Network {
     public List<Network> networks;
     public List<Machine> members;
 
+    // Binding table handed to lua, the id never changes so it's only built once
+    private volatile LuaTable luaTable;
+
     public Network() {
         globalId = assignGlobalId();
         allNetworks.add(this);
@@ -82,7 +86,21 @@ public class Network {
         return "[" + globalId + "]: " + members.toString();
     }
 
+    /**
+     * Gets the lua binding for this network, the same read-only table is handed out every time
+     *
+     * @return The binding table
+     */
     public LuaTable toTable() {
+        LuaTable table = luaTable;
+        if (table == null) {
+            table = new ReadOnlyLuaTable(buildTable());
+            luaTable = table;
+        }
+        return table;
+    }
+
+    private LuaTable buildTable() {
         LuaTable table = new LuaTable();
         table.set("is_null", LuaValue.valueOf(false));
         table.set("type", "network");
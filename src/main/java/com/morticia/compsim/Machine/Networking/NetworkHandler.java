@@ -2,11 +2,12 @@ package com.morticia.compsim.Machine.Networking;
 
 import com.morticia.compsim.Machine.Event.Event;
 import com.morticia.compsim.Machine.Machine;
-import com.morticia.compsim.Util.Lua.LuaParamData;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import org.luaj.vm2.LuaTable;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class is used by machines to handle new network connections and transmissions over old ones
@@ -22,6 +23,8 @@ public class NetworkHandler {
     public Machine machine;
     public int address;
     public List<Socket> sockets;
+    // Processes yielded in network.wait_packet, every one of them gets the next packet
+    public List<MachineProcess> packetWaiters;
 
     public NetworkHandler(Machine machine) {
         // TODO: 7/15/22 load networks from dataHandler
@@ -31,16 +34,28 @@ public class NetworkHandler {
 
         this.address = network.assignId();
         this.sockets = new ArrayList<>();
+        this.packetWaiters = new CopyOnWriteArrayList<>();
     }
 
+    /**
+     * Queues a packet_received event on this machine, the handler runs on this machine's tick rather than the sender's
+     *
+     * @param packet Packet received
+     */
     public void receivePacket(Packet packet) {
-        List<String> params = new ArrayList<>(machine.eventHandler.getEvent("packet_received").eventData);
-        params.add("sender_id: " + packet.sender.networkHandler.address);
-        params.add("sender_desig: " + packet.sender.desig);
-        LuaParamData d = new LuaParamData(params, false);
-        d.addTable("data", packet.data);
+        LuaTable payload = new LuaTable();
+        payload.set("sender_id", packet.sender.networkHandler.address);
+        payload.set("sender_desig", packet.sender.desig);
+        payload.set("data", packet.data);
 
-        machine.eventHandler.triggerEvent("packet_received", d);
+        for (MachineProcess i : packetWaiters) {
+            if (packetWaiters.remove(i)) {
+                i.signal(payload);
+            }
+        }
+
+        // Called from the sender's process, which can't be left waiting on another machine's queue
+        machine.eventHandler.addEvent("packet_received", payload, false);
     }
 
     public boolean sendPacket(Packet packet) {
@@ -65,13 +80,14 @@ public class NetworkHandler {
     }
 
     public void openSocket(Machine requester) {
-        machine.eventHandler.triggerEvent("socket_requested", new String[] {
-                "requester_network_id: " + requester.networkHandler.network.globalId,
-                "requester_addr" + requester.networkHandler.address
-        });
+        LuaTable payload = new LuaTable();
+        payload.set("requester_network_id", requester.networkHandler.network.globalId);
+        payload.set("requester_addr", requester.networkHandler.address);
+
+        machine.eventHandler.addEvent("socket_requested", payload, false);
     }
 
     public void registerNetworkEvents() {
-        machine.eventHandler.eventList.add(new Event(machine, "packet_received", "network"));
+        machine.eventHandler.registerEvent(new Event(machine, "packet_received", "network"));
     }
 }
@@ -9,16 +9,31 @@ import com.morticia.compsim.Machine.MachineIOStream.MachineIOStream;
 import com.morticia.compsim.Util.Disk.DiskUtil;
 import com.morticia.compsim.Util.Lua.Lib.ProcessLib;
 import com.morticia.compsim.Util.Lua.Lib.TerminalLib;
+import com.morticia.compsim.Util.Lua.InstructionBudget;
 import com.morticia.compsim.Util.Lua.LuaLib;
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
 import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.ZeroArgFunction;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class mostly serves to group files and make sharing data between files easier
+ * <p>
+ * Each run of a process is a lua coroutine that the process handler resumes on the machine's tick. Library calls that
+ * would block (reading a line, sleeping, waiting on a packet) yield the coroutine instead and the process sits in the
+ * waiting state until whatever it's waiting on happens
+ * <p>
+ * Processes are time-sliced, every slice worth of instructions they're preempted and the handler picks whichever ready
+ * process has had the least weighted cpu time. Lower nice levels get bigger slices and are charged less for them.
+ * Continuous processes are started again when their run finishes, for services that should always be up
  *
  * @author Morticia
  * @version 1.0
@@ -31,9 +46,24 @@ public class MachineProcess {
     public int id;
     public String processName;
     // 0 = active, 1 = ready, 2 = waiting, 3 = interrupted
-    public int statusCode;
+    public volatile int statusCode;
     public String statusMsg;
-    public boolean continuous;
+    public volatile boolean continuous;
+
+    // -20 gets the most cpu, 19 the least
+    public volatile int nice;
+    // Time spent running in total, and weighted by nice for picking who runs next
+    public volatile long cpuNanos;
+    public volatile long vruntime;
+    // Set when the process last stopped because its slice ran out rather than to wait
+    private volatile boolean preempted;
+    // Share of the last second or so spent running, 0 to 1
+    private double cpuUsage;
+    private long usageSampleAt;
+    private long usageSampleCpu;
+
+    public static final long baseSliceInstructions = 100_000;
+    public static final long restartDelayMillis = 1000;
 
     public VirtualFolder workingDir;
     public VirtualFile rootFile;
@@ -49,6 +79,22 @@ public class MachineProcess {
 
     public LuaTable processTable;
 
+    // Binding table handed to lua, the id and name never change so it's only built once
+    private volatile LuaTable luaTable;
+
+    // Process whose coroutine is running on this thread
+    private static final ThreadLocal<MachineProcess> current = new ThreadLocal<>();
+
+    public volatile LuaThread coroutine;
+    // What a waiting process is waiting on, checked every tick. wakeAt is a System#nanoTime deadline, 0 for none
+    private volatile BooleanSupplier waitCondition;
+    private volatile long wakeAt;
+    private volatile boolean signalled;
+    // Handed back to the script when it's woken with signal
+    private volatile LuaValue wakeValue = LuaValue.NIL;
+    // Script the current run started with, used to restart continuous processes
+    private volatile String runPath;
+
     /**
      * Constructor
      *
@@ -94,6 +140,55 @@ public class MachineProcess {
         } else {
             this.globals = lib.prepUserGlobals(machine, stream);
         }
+        InstructionBudget.slice(globals, this, getSliceInstructions());
+    }
+
+    /**
+     * Sets the nice level, which decides how big a slice the process gets and how much it's charged for it
+     *
+     * @param nice New nice level, clamped to -20 to 19
+     */
+    public void setNice(int nice) {
+        this.nice = Math.max(-20, Math.min(19, nice));
+        if (globals != null) {
+            InstructionBudget.slice(globals, this, getSliceInstructions());
+        }
+    }
+
+    /**
+     * Gets the scheduling weight for the current nice level, each level is about 25% more or less cpu
+     *
+     * @return The weight, 1024 at nice 0
+     */
+    public long getWeight() {
+        return Math.max(1, Math.round(1024 / Math.pow(1.25, nice)));
+    }
+
+    /**
+     * Gets how many instructions the process runs before it's preempted
+     *
+     * @return Instructions per slice
+     */
+    public long getSliceInstructions() {
+        return Math.max(1000, baseSliceInstructions * getWeight() / 1024);
+    }
+
+    /**
+     * Gets the share of time this process has spent running recently, updated about once a second
+     *
+     * @return Share of time running, 0 to 1
+     */
+    public synchronized double getCpuUsage() {
+        long now = System.nanoTime();
+        if (usageSampleAt == 0) {
+            usageSampleAt = now;
+            usageSampleCpu = cpuNanos;
+        } else if (now - usageSampleAt >= 1_000_000_000L) {
+            cpuUsage = Math.min(1, (double) (cpuNanos - usageSampleCpu) / (now - usageSampleAt));
+            usageSampleAt = now;
+            usageSampleCpu = cpuNanos;
+        }
+        return cpuUsage;
     }
 
     /**
@@ -119,11 +214,218 @@ public class MachineProcess {
     }
 
     /**
-     * Starts the process
+     * Starts the process, it runs on the machine's next tick
      */
     public void start() {
-        setStatus(0);
-        execFile(rootFile.getPath());
+        spawn(rootFile.getPath());
+    }
+
+    /**
+     * Gets the process running on the current thread
+     *
+     * @return The process, null if this isn't running inside one
+     */
+    public static MachineProcess current() {
+        return current.get();
+    }
+
+    /**
+     * Starts a run of a script as this process's coroutine, it's resumed on the machine's next tick
+     *
+     * @param path Path to the script to be executed
+     * @return Whether or not it was started, false if the process is already running something
+     */
+    public boolean spawn(String path) {
+        if (isRunning()) {
+            return false;
+        }
+        runPath = path;
+        preempted = false;
+        coroutine = new LuaThread(globals, new body(this, path));
+        // Don't let a new run jump ahead of everything with all the time it wasn't running
+        vruntime = Math.max(vruntime, handler.getMinVruntime());
+        setStatus(1);
+        machine.wake();
+        return true;
+    }
+
+    /**
+     * Starts a continuous process over once its run has finished, after a short delay so a script that fails straight
+     * away doesn't take over the machine
+     */
+    private void restart() {
+        String path = runPath;
+        if (path == null || statusCode == 3) {
+            return;
+        }
+        preempted = false;
+        coroutine = new LuaThread(globals, new body(this, path));
+        waitCondition = null;
+        wakeAt = System.nanoTime() + restartDelayMillis * 1_000_000L;
+        setStatus(2);
+        machine.wakeAfter(restartDelayMillis);
+    }
+
+    /**
+     * Whether or not the process has a run that hasn't finished yet
+     *
+     * @return True if the coroutine is alive
+     */
+    public boolean isRunning() {
+        LuaThread c = coroutine;
+        return c != null && !c.getStatus().equals("dead");
+    }
+
+    /**
+     * Whether or not the process handler should resume this process. Interrupted processes are resumed once more so the
+     * coroutine can unwind
+     *
+     * @return True if the process should be resumed
+     */
+    public boolean isResumable() {
+        return (statusCode == 1 || statusCode == 3) && isRunning() && current() != this;
+    }
+
+    /**
+     * Whether or not a waiting process has what it's waiting on
+     *
+     * @return True if the process can be made ready
+     */
+    public boolean canWake() {
+        if (statusCode != 2 || !isRunning()) {
+            return false;
+        }
+        BooleanSupplier c = waitCondition;
+        long deadline = wakeAt;
+        return signalled || (c != null && c.getAsBoolean()) || (deadline != 0 && System.nanoTime() - deadline >= 0);
+    }
+
+    /**
+     * Runs the coroutine until it yields or finishes, only the process handler should call this
+     */
+    public void resume() {
+        LuaThread c = coroutine;
+        if (c == null) {
+            return;
+        }
+        if (statusCode != 3) {
+            setStatus(0);
+        }
+        // Coming back from a preemption carries on the same run, so the budget only starts over after a real wait or yield
+        if (preempted) {
+            preempted = false;
+            InstructionBudget.nextSlice(c.globals);
+        } else {
+            InstructionBudget.reset(c.globals);
+        }
+        long start = System.nanoTime();
+        Varargs r = c.resume(LuaValue.NONE);
+        long elapsed = System.nanoTime() - start;
+        cpuNanos += elapsed;
+        vruntime += elapsed * 1024 / getWeight();
+
+        if (!r.arg1().toboolean() && statusCode != 3) {
+            machine.guiHandler.printError(DiskUtil.removeObjectivePaths(r.arg(2).tojstring(), machine.desig));
+        }
+        if (!isRunning() && statusCode != 3) {
+            if (continuous) {
+                restart();
+            } else {
+                setStatus(1);
+            }
+        }
+    }
+
+    /**
+     * Gives up the rest of the slice, the process goes back to ready and waits its turn. Only does anything from inside
+     * this process's coroutine
+     */
+    public void preempt() {
+        LuaThread c = coroutine;
+        if (current() != this || c == null) {
+            return;
+        }
+        setStatus(1);
+        preempted = true;
+        c.globals.yield(LuaValue.NONE);
+        if (statusCode == 3) {
+            throw new LuaError("process interrupted");
+        }
+    }
+
+    /**
+     * Yields the process until the condition is true, the timeout runs out, or it's signalled. Has to be called from
+     * inside this process's coroutine
+     *
+     * @param condition What to wait on, null to only wait on the timeout or a signal
+     * @param timeoutMillis Most time to wait in milliseconds, 0 waits forever
+     * @return The value passed to signal, nil if there wasn't one
+     */
+    public LuaValue await(BooleanSupplier condition, long timeoutMillis) {
+        LuaThread c = coroutine;
+        if (current() != this || c == null) {
+            throw new LuaError("process can only wait from inside itself");
+        }
+        if (statusCode == 3) {
+            throw new LuaError("process interrupted");
+        }
+
+        waitCondition = condition;
+        wakeAt = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1_000_000L : 0;
+        setStatus(2);
+        if (timeoutMillis > 0) {
+            machine.wakeAfter(timeoutMillis);
+        }
+
+        c.globals.yield(LuaValue.NONE);
+
+        waitCondition = null;
+        wakeAt = 0;
+        // Signals are kept until a wait picks them up, so one sent just before the yield isn't lost
+        LuaValue value = signalled ? wakeValue : LuaValue.NIL;
+        signalled = false;
+        wakeValue = LuaValue.NIL;
+        if (statusCode == 3) {
+            throw new LuaError("process interrupted");
+        }
+        return value;
+    }
+
+    /**
+     * Wakes a waiting process, passing it a value
+     *
+     * @param value Value await returns
+     */
+    public void signal(LuaValue value) {
+        wakeValue = value;
+        signalled = true;
+        machine.wake();
+    }
+
+    /**
+     * Coroutine body for a run of a process, marks the thread as belonging to the process while the script runs
+     */
+    private static class body extends ZeroArgFunction {
+        MachineProcess process;
+        String path;
+
+        public body(MachineProcess process, String path) {
+            this.process = process;
+            this.path = path;
+        }
+
+        @Override
+        public LuaValue call() {
+            current.set(process);
+            try {
+                process.execFile(path);
+            } finally {
+                current.remove();
+                // Subscriptions only last as long as the run that made them
+                process.machine.eventHandler.unsubscribeAll(process);
+            }
+            return LuaValue.NONE;
+        }
     }
 
     /**
@@ -153,7 +455,9 @@ public class MachineProcess {
                 paramsTable.set("process", toTable());
                 globals.set("params", paramsTable);
                 globals.set("process_table", processTable);
-                LuaValue val =  globals.loadfile(f.trueFile.path.toString()).call();
+                // Globals are kept between runs, the budget isn't
+                InstructionBudget.reset(globals);
+                LuaValue val = f.trueFile.loadChunk(globals).call();
                 try {
                     if (val.get("globals") != null) machine.machineGlobals = (LuaTable) val.get("globals");
                 } catch (Exception ignored) {}
@@ -168,7 +472,11 @@ public class MachineProcess {
                 }
                 setStatus(1);
             } catch (Exception e) {
-                machine.guiHandler.p_terminal.println(Terminal.wrapInColor(DiskUtil.removeObjectivePaths(e.getMessage(), machine.desig), "f7261b"));
+                if (statusCode == 3) {
+                    // Killed while waiting, nothing went wrong
+                    return;
+                }
+                machine.guiHandler.printError(DiskUtil.removeObjectivePaths(e.getMessage(), machine.desig));
                 e.printStackTrace();
                 setStatus(1);
             }
@@ -181,14 +489,28 @@ public class MachineProcess {
     public void kill() {
         statusCode = 3;
         updateStatusMsg();
+        // A waiting coroutine gets resumed once so it can unwind
+        if (isRunning()) {
+            machine.wake();
+        }
     }
 
     /**
-     * Converts this process to a lua table, a data structure compatible with lua execution
+     * Converts this process to a lua table, a data structure compatible with lua execution. The table is read-only and
+     * the same one is handed out every time
      *
      * @return The lua table formatted
      */
     public LuaTable toTable() {
+        LuaTable table = luaTable;
+        if (table == null) {
+            table = new ReadOnlyLuaTable(buildTable());
+            luaTable = table;
+        }
+        return table;
+    }
+
+    private LuaTable buildTable() {
         LuaTable table = new LuaTable();
         table.set("is_null", LuaValue.valueOf(false));
         table.set("id", id);
@@ -202,6 +524,11 @@ public class MachineProcess {
         table.set("set_file", new ProcessLib.set_file(this));
         table.set("start", new ProcessLib.start(this));
         table.set("run", new ProcessLib.run(this));
+        table.set("set_continuous", new ProcessLib.set_continuous(this));
+        table.set("get_status", new ProcessLib.get_status(this));
+        table.set("get_nice", new ProcessLib.get_nice(this));
+        table.set("set_nice", new ProcessLib.set_nice(this));
+        table.set("get_cpu", new ProcessLib.get_cpu(this));
         return table;
     }
 
@@ -3,8 +3,8 @@ package com.morticia.compsim.Machine.Process;
 import com.morticia.compsim.Machine.Filesystem.VirtualFile;
 import com.morticia.compsim.Machine.Machine;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * These objects make it easier to enumerate and contain the processes on a machine
@@ -19,6 +19,9 @@ public class ProcessHandler {
     public List<MachineProcess> processes;
     public VirtualFile stdEntry;
 
+    // Most time spent running processes in one tick, after that they wait for the next tick so events get handled
+    public static final long tickQuantumNanos = 5_000_000;
+
     /**
      * Constructor
      *
@@ -26,7 +29,7 @@ public class ProcessHandler {
      */
     public ProcessHandler(Machine machine) {
         this.machine = machine;
-        this.processes = new ArrayList<>();
+        this.processes = new CopyOnWriteArrayList<>();
         this.stdEntry = machine.filesystem.getFile("/root/process/std_entry.lua");
     }
 
@@ -55,4 +58,80 @@ public class ProcessHandler {
         processes.add(p);
         return p;
     }
+
+    /**
+     * Runs processes for up to a tick's worth of time, called once per machine tick. The ready process with the least
+     * weighted cpu time goes first, and anything left over gets its turn next tick. Waiting processes are only looked at
+     * to see if what they're waiting on has happened, so they don't cost anything otherwise
+     */
+    public void tick() {
+        long min = getMinVruntime();
+        for (MachineProcess i : processes) {
+            if (i.canWake()) {
+                // Waking up doesn't get to spend all the time it was asleep at once
+                i.vruntime = Math.max(i.vruntime, min);
+                i.setStatus(1);
+            }
+        }
+
+        long deadline = System.nanoTime() + tickQuantumNanos;
+        MachineProcess next;
+        while ((next = pickNext()) != null) {
+            next.resume();
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Picks the next process to resume. Interrupted ones go first so they can unwind, then the ready one that's had the
+     * least weighted cpu time
+     *
+     * @return The process, null if none can be resumed
+     */
+    private MachineProcess pickNext() {
+        MachineProcess best = null;
+        for (MachineProcess i : processes) {
+            if (!i.isResumable()) {
+                continue;
+            }
+            if (i.statusCode == 3) {
+                return i;
+            }
+            if (best == null || i.vruntime < best.vruntime) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Gets the least weighted cpu time of any process that's ready or running
+     *
+     * @return The smallest vruntime, 0 if nothing is ready
+     */
+    public long getMinVruntime() {
+        long min = Long.MAX_VALUE;
+        for (MachineProcess i : processes) {
+            if ((i.statusCode == 0 || i.statusCode == 1) && i.isRunning()) {
+                min = Math.min(min, i.vruntime);
+            }
+        }
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    /**
+     * Whether or not a process would run on the next tick
+     *
+     * @return True if any process is ready to be resumed
+     */
+    public boolean hasPendingWork() {
+        for (MachineProcess i : processes) {
+            if (i.canWake() || i.isResumable()) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
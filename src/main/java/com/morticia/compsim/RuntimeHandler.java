@@ -3,6 +3,7 @@ package com.morticia.compsim;
 import com.morticia.compsim.IO.IOHandler;
 import com.morticia.compsim.Machine.MachineHandler;
 import com.morticia.compsim.Util.Disk.DiskUtil;
+import com.morticia.compsim.Util.Disk.WriteBehind;
 import com.morticia.compsim.Util.Lua.LuaLib;
 
 public class RuntimeHandler {
@@ -25,6 +26,7 @@ public class RuntimeHandler {
 
     public static void stop() {
         machineHandler.saveMachines();
+        WriteBehind.shared.flushAll();
 
         ioHandler.interrupt();
         machineHandler.interrupt();
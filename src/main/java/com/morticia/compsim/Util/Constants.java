@@ -4,6 +4,8 @@ package com.morticia.compsim.Util;
 public class Constants {
     // TODO: 6/30/22 Move this to a config file so it can be edited after compilation
     public static boolean DEBUG = true;
+    // Gives every machine its own thread (virtual if the JVM has them) instead of sharing the scheduler's pool
+    public static boolean THREAD_PER_MACHINE = false;
 
     public static final String str_type = "str";
     public static final String v_folder_type = "virtual_folder";
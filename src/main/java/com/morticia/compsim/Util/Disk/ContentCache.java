@@ -0,0 +1,137 @@
+package com.morticia.compsim.Util.Disk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least recently used set of DiskFiles that have their contents in memory, bounded by a rough byte count shared by every
+ * machine
+ * <p>
+ * Files register themselves whenever their contents are read or changed. Once the total goes over the budget the least
+ * recently used clean files drop their contents, which get read from disk again the next time they're needed. Files with
+ * changes that haven't been written yet, or that another thread is using at that moment, are never dropped
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/11/22
+ */
+
+public class ContentCache {
+    public static final long defaultBudget = 64L * 1024 * 1024;
+    public static final ContentCache shared = new ContentCache(defaultBudget);
+
+    public volatile long budget;
+
+    // Access order, so the eldest entry is the least recently used. Values are the size each file was last counted at
+    private final LinkedHashMap<DiskFile, Long> entries;
+    private long bytes;
+
+    public long loads;
+    public long evictions;
+
+    /**
+     * Constructor
+     *
+     * @param budget Roughly how many bytes of contents can be held before files start getting dropped
+     */
+    public ContentCache(long budget) {
+        this.budget = Math.max(0, budget);
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Marks a file as just used and updates how big it is, dropping other files if that puts the cache over budget
+     *
+     * @param file File that was used
+     * @param size Rough size of its contents in bytes
+     */
+    public void touch(DiskFile file, long size) {
+        List<DiskFile> victims;
+        synchronized (this) {
+            Long old = entries.put(file, size);
+            bytes += size - (old == null ? 0 : old);
+            if (bytes <= budget) {
+                return;
+            }
+            victims = takeVictims(file);
+        }
+        // Files are unloaded outside the cache's lock since they call back in here. The caller can be holding its own file's
+        // lock too, so files that are busy are skipped rather than waited on and go back in the cache
+        for (DiskFile i : victims) {
+            if (!i.unloadIfClean() && i.isLoaded()) {
+                restore(i);
+            }
+        }
+    }
+
+    /**
+     * Puts a file that couldn't be unloaded back without evicting anything for it
+     *
+     * @param file File to put back
+     */
+    private synchronized void restore(DiskFile file) {
+        if (!entries.containsKey(file)) {
+            long size = file.getBytes();
+            entries.put(file, size);
+            bytes += size;
+        }
+    }
+
+    /**
+     * Forgets a file, called when it drops its contents
+     *
+     * @param file File to forget
+     */
+    public synchronized void remove(DiskFile file) {
+        Long old = entries.remove(file);
+        if (old != null) {
+            bytes -= old;
+        }
+    }
+
+    /**
+     * Takes the least recently used clean files out until the cache is under budget
+     *
+     * @param keep File that was just used, never taken
+     * @return The files to unload
+     */
+    private List<DiskFile> takeVictims(DiskFile keep) {
+        List<DiskFile> victims = new ArrayList<>();
+        Iterator<Map.Entry<DiskFile, Long>> it = entries.entrySet().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Map.Entry<DiskFile, Long> e = it.next();
+            DiskFile f = e.getKey();
+            if (f == keep || f.isDirty()) {
+                continue;
+            }
+            it.remove();
+            bytes -= e.getValue();
+            evictions++;
+            victims.add(f);
+        }
+        return victims;
+    }
+
+    /**
+     * Counts a read from disk, for the stats
+     */
+    public synchronized void countLoad() {
+        loads++;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Files: " + entries.size() + " | Bytes: " + bytes + "/" + budget + " | Loads: " + loads + " | Evictions: " + evictions;
+    }
+}
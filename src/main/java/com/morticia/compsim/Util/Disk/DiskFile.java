@@ -1,8 +1,8 @@
 package com.morticia.compsim.Util.Disk;
 
-import com.morticia.compsim.IO.GUI.Terminal;
 import com.morticia.compsim.Machine.Filesystem.ExecutionPermissions;
 import com.morticia.compsim.Machine.Machine;
+import com.morticia.compsim.Util.Lua.ChunkCache;
 import com.morticia.compsim.Util.Lua.LuaLib;
 import com.morticia.compsim.Util.Lua.LuaParamData;
 import org.luaj.vm2.Globals;
@@ -14,11 +14,16 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Utility class to make interactions with files easier. Serves primarily as a data wrapper for text editing
  * <p>
- * While using this class keep in mind that the contents variable is public and if it's faster you're free to edit it directly
+ * Contents aren't read until something asks for them, and ContentCache can drop them again once they haven't been used in
+ * a while. Go through getContents/setContents rather than holding on to the list, it can be swapped out underneath you
+ * <p>
+ * Edits are written behind by default, they mark the file dirty and WriteBehind writes it out a little later. If only
+ * lines were added since the last write just the new lines are appended instead of the whole file being written again
  *
  * @author Morticia
  * @version 1.0
@@ -32,13 +37,44 @@ public class DiskFile {
     public Path path;
     public boolean writable;
     public ExecutionPermissions execPerms;
+    public volatile Durability durability = Durability.write_behind;
+
+    // Guards contents. A lock rather than synchronized so the cache can skip files that are busy instead of waiting
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Null until read from disk, and again after being evicted
+    private volatile List<String> contents;
+    // Rough size of contents in memory, for the cache's budget
+    private volatile long bytes;
+    // Set when contents have changes that haven't been written to disk, those can't be evicted
+    private volatile boolean dirty;
+    // Lines on disk as of the last read or write, and whether they're all still the same so new lines can just be appended
+    private int flushedLines;
+    private boolean appendOnly;
 
-    public List<String> contents;
+    /**
+     * How soon edits reach the disk
+     */
+    public enum Durability {
+        // Written on the next WriteBehind flush, or when the machine saves
+        write_behind,
+        // Written before the edit returns
+        write_through;
+
+        public static Durability fromString(String s) {
+            for (Durability i : values()) {
+                if (i.name().equals(s)) {
+                    return i;
+                }
+            }
+            return null;
+        }
+    }
 
     /**
      * Initializer function, pretty straightforward
      *
-     * If file already exists contents will be initialized from it
+     * If file already exists contents will be read from it the first time they're needed
      *
      * @param parentDir The directory of the folder this file is in
      * @param fileName The name of this file, including extensions (.txt,.sh, etc.)
@@ -59,15 +95,11 @@ public class DiskFile {
         }
         this.path = Path.of(DiskUtil.getObjectivePath(dir));
         this.writable = writable;
-        this.contents = new ArrayList<>();
 
         File f = path.toFile();
 
         try {
-            if (f.exists() && f.isFile()) {
-                // Tries to initialize contents (the buffer) from file if it exists
-                readBuffer();
-            } else {
+            if (!f.exists()) {
                 f.createNewFile();
             }
         } catch (Exception e) {
@@ -76,12 +108,23 @@ public class DiskFile {
         }
 
         // Set permissions, library perms set later
-        this.execPerms = new ExecutionPermissions();
-        this.execPerms.canExecute = extension.endsWith("lua");
-        //this.execPerms.libAccess.add("io");
+        this.execPerms = defaultExecPerms(extension);
+    }
+
+    /**
+     * Gets the permissions a file starts with when it's read from disk
+     *
+     * @param extension Extension of the file
+     * @return New permissions object
+     */
+    public static ExecutionPermissions defaultExecPerms(String extension) {
+        ExecutionPermissions perms = new ExecutionPermissions();
+        perms.canExecute = extension.endsWith("lua");
+        //perms.libAccess.add("io");
 
         // TODO: 7/2/22 Remove after debugging, instead load from metafile or smth
-        this.execPerms.libAccess.add("std");
+        perms.libAccess.add("std");
+        return perms;
     }
 
     /**
@@ -101,9 +144,210 @@ public class DiskFile {
         this.fileName = fileName;
         this.path = Path.of(dir);
         this.writable = writable;
-        this.contents = new ArrayList<>();
 
-        this.contents.addAll(contents);
+        // Nothing's on disk yet, so these can't be dropped until they're written
+        setContents(new ArrayList<>(contents));
+    }
+
+    /**
+     * Gets the contents, reading them from disk if they aren't in memory
+     *
+     * @return The lines of the file
+     */
+    public List<String> getContents() {
+        lock.lock();
+        try {
+            if (contents == null) {
+                loadContents();
+            }
+            ContentCache.shared.touch(this, bytes);
+            return contents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents, they're written to disk depending on durability
+     *
+     * @param lines New lines of the file
+     */
+    public void setContents(List<String> lines) {
+        lock.lock();
+        try {
+            this.contents = lines;
+            changed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes any changes now instead of waiting for the next flush
+     *
+     * @return Whether or not the operation was successful
+     */
+    public boolean flush() {
+        WriteBehind.shared.cancel(this);
+        if (writeBuffer()) {
+            return true;
+        }
+        // Still has changes, so it goes back in line to be tried again
+        if (dirty) {
+            WriteBehind.shared.schedule(this);
+        }
+        return false;
+    }
+
+    /**
+     * Compiles this file as a script bound to the given globals. Scripts are loaded from the host disk, so changes still
+     * waiting in WriteBehind are written first or the old code would run
+     *
+     * @param globals Globals the script will run with
+     * @return The loaded script, ready to call
+     */
+    public LuaValue loadChunk(Globals globals) {
+        if (dirty) {
+            flush();
+        }
+        return ChunkCache.load(globals, path);
+    }
+
+    /**
+     * Whether or not the contents have changes that haven't been written to disk
+     *
+     * @return True if they do
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Whether or not the contents are in memory right now
+     *
+     * @return True if they are
+     */
+    public boolean isLoaded() {
+        return contents != null;
+    }
+
+    /**
+     * Rough size of the contents in memory
+     *
+     * @return Size in bytes, 0 if they aren't loaded
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drops the contents if they match what's on disk, called by ContentCache when it's over budget
+     *
+     * @return Whether or not they were dropped
+     */
+    public boolean unloadIfClean() {
+        // Never waits, the caller can be holding another file's lock
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (dirty || contents == null) {
+                return false;
+            }
+            contents = null;
+            bytes = 0;
+            ContentCache.shared.remove(this);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the contents from disk without counting it as a use
+     */
+    private void loadContents() {
+        List<String> lines = new ArrayList<>();
+        File f = path.toFile();
+        if (f.exists() && f.isFile() && f.canRead()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(f.getAbsoluteFile()))) {
+                lines.addAll(br.lines().toList());
+            } catch (Exception e) {
+                printError(e);
+            }
+        }
+        this.contents = lines;
+        this.dirty = false;
+        this.bytes = countBytes(lines);
+        this.flushedLines = lines.size();
+        this.appendOnly = endsWithNewline(f);
+        ContentCache.shared.countLoad();
+    }
+
+    /**
+     * Marks the contents as changed somewhere other than the end, the next write has to be the whole file
+     */
+    private void changed() {
+        appendOnly = false;
+        bytes = countBytes(contents);
+        committed();
+    }
+
+    /**
+     * Marks lines as added to the end, the next write only has to append them
+     *
+     * @param added Rough size of the new lines in bytes
+     */
+    private void appended(long added) {
+        bytes += added;
+        committed();
+    }
+
+    /**
+     * Marks the file dirty and writes it now or later depending on durability
+     */
+    private void committed() {
+        ContentCache.shared.touch(this, bytes);
+        // Changes to a wrapper that can't write only live in memory, marking it dirty would just pin it in the cache
+        if (!writable) {
+            return;
+        }
+        dirty = true;
+        if (durability != Durability.write_through || !writeBuffer()) {
+            WriteBehind.shared.schedule(this);
+        }
+    }
+
+    /**
+     * Whether or not a file is empty or ends in a line break, anything else can't have lines appended straight onto it
+     *
+     * @param f File to check
+     * @return True if lines can be appended
+     */
+    private static boolean endsWithNewline(File f) {
+        long length = f.length();
+        if (length == 0) {
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static long countBytes(List<String> lines) {
+        long total = 0;
+        for (String i : lines) {
+            total += lineBytes(i);
+        }
+        return total;
+    }
+
+    // A String is about 40 bytes of overhead plus its characters, close enough for a budget
+    private static long lineBytes(String line) {
+        return 40 + 2L * line.length();
     }
 
     /**
@@ -112,7 +356,7 @@ public class DiskFile {
      * @return Number of lines present
      */
     public int getNumLines() {
-        return contents.size() + 1;
+        return getContents().size() + 1;
     }
 
     /**
@@ -122,6 +366,7 @@ public class DiskFile {
      * @return The text correlating to the given line number
      */
     public String getLine(int line) {
+        List<String> contents = getContents();
         // This is done so I can address line 1 (logical start of text) but maintain standard list indexing
         line--;
         if (line < contents.size() && line > 0) {
@@ -137,11 +382,17 @@ public class DiskFile {
      * @param text The text to set the line to
      */
     public void setLine(int line, String text) {
-        line--;
-        if (line < contents.size() && line > 0) {
-            contents.set(line, text);
+        lock.lock();
+        try {
+            List<String> contents = getContents();
+            line--;
+            if (line < contents.size() && line > 0) {
+                contents.set(line, text);
+            }
+            changed();
+        } finally {
+            lock.unlock();
         }
-        writeBuffer();
     }
 
     /**
@@ -150,7 +401,13 @@ public class DiskFile {
      * @param text Text to append
      */
     public void appendLine(String text) {
-        contents.add(text);
+        lock.lock();
+        try {
+            getContents().add(text);
+            appended(lineBytes(text));
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -164,9 +421,7 @@ public class DiskFile {
         if (txt.isBlank()) {
             return;
         }
-        contents = new ArrayList<>();
-        String[] lines = txt.split("\n");
-        contents.addAll(Arrays.asList(lines));
+        setContents(new ArrayList<>(Arrays.asList(txt.split("\n"))));
     }
 
     /**
@@ -176,7 +431,7 @@ public class DiskFile {
      */
     public String getLines() {
         StringBuilder s = new StringBuilder();
-        for (String i : contents) {
+        for (String i : getContents()) {
             s.append(i).append("\n");
         }
         return s.toString();
@@ -189,11 +444,17 @@ public class DiskFile {
      * @param text Text to append
      */
     public void appendLine(int line, String text) {
-        line--;
-        if (line < contents.size() && line > 0) {
-            contents.set(line, contents.get(line) + text);
+        lock.lock();
+        try {
+            List<String> contents = getContents();
+            line--;
+            if (line < contents.size() && line > 0) {
+                contents.set(line, contents.get(line) + text);
+            }
+            changed();
+        } finally {
+            lock.unlock();
         }
-        writeBuffer();
     }
 
     /**
@@ -202,8 +463,13 @@ public class DiskFile {
      * @param text Text contained in that line
      */
     public void appendNewLine(String text) {
-        contents.add(text);
-        writeBuffer();
+        lock.lock();
+        try {
+            getContents().add(text);
+            appended(lineBytes(text));
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -213,10 +479,16 @@ public class DiskFile {
      * @param initVal Value the new lines will be initialized to
      */
     public void addLines(int newLines, String initVal) {
-        for (int i = 0; i < newLines; i++) {
-            contents.add(initVal);
+        lock.lock();
+        try {
+            List<String> contents = getContents();
+            for (int i = 0; i < newLines; i++) {
+                contents.add(initVal);
+            }
+            appended(newLines * lineBytes(initVal));
+        } finally {
+            lock.unlock();
         }
-        writeBuffer();
     }
 
     /**
@@ -234,11 +506,17 @@ public class DiskFile {
      * @param line Line to be removed
      */
     public void removeLine(int line) {
-        line--;
-        if (line < contents.size() && line > 0) {
-            contents.remove(line);
+        lock.lock();
+        try {
+            List<String> contents = getContents();
+            line--;
+            if (line < contents.size() && line > 0) {
+                contents.remove(line);
+            }
+            changed();
+        } finally {
+            lock.unlock();
         }
-        writeBuffer();
     }
 
     /**
@@ -248,15 +526,21 @@ public class DiskFile {
      * @param end End of the lines to be removed
      */
     public void removeLines(int start, int end) {
-        if (start > 0 && end < contents.size()) {
-            start--;
-            end--;
-            // This might not work, tinker with it if there are issues
-            if (end >= start) {
-                contents.subList(start, end + 1).clear();
+        lock.lock();
+        try {
+            List<String> contents = getContents();
+            if (start > 0 && end < contents.size()) {
+                start--;
+                end--;
+                // This might not work, tinker with it if there are issues
+                if (end >= start) {
+                    contents.subList(start, end + 1).clear();
+                }
             }
+            changed();
+        } finally {
+            lock.unlock();
         }
-        writeBuffer();
     }
 
     /**
@@ -265,49 +549,77 @@ public class DiskFile {
      * @return Whether or not the operation was successful
      */
     public boolean readBuffer() {
-        File f = path.toFile();
-        if (f.exists() && f.isFile() && f.canRead()) {
-            try {
-                FileReader fr = new FileReader(f.getAbsoluteFile());
-                BufferedReader br = new BufferedReader(fr);
-                this.contents = new ArrayList<>();
-                this.contents.addAll(br.lines().toList());
-                return true;
-            } catch (Exception e) {
-                printError(e);
-                contents = new ArrayList<>();
-                return false;
+        lock.lock();
+        try {
+            File f = path.toFile();
+            if (f.exists() && f.isFile() && f.canRead()) {
+                try (BufferedReader br = new BufferedReader(new FileReader(f.getAbsoluteFile()))) {
+                    this.contents = new ArrayList<>(br.lines().toList());
+                    this.dirty = false;
+                    this.bytes = countBytes(contents);
+                    this.flushedLines = contents.size();
+                    this.appendOnly = endsWithNewline(f);
+                    ContentCache.shared.touch(this, bytes);
+                    return true;
+                } catch (Exception e) {
+                    printError(e);
+                    // Not marked dirty, an empty buffer from a failed read shouldn't get written over the file
+                    this.contents = new ArrayList<>();
+                    this.bytes = 0;
+                    this.flushedLines = 0;
+                    this.appendOnly = false;
+                    return false;
+                }
             }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     /**
-     * Function to write the buffer onto the disk, this is automatically called by many text manipulation functions
+     * Function to write the buffer onto the disk, edits do this through WriteBehind or straight away depending on
+     * durability. Only the new lines are written if nothing else changed since the last write
      *
      * @return Whether or not the operation was successful
      */
     public boolean writeBuffer() {
-        File f = path.toFile();
-        if (this.writable && f.canWrite()) {
-            StringBuilder finStr = new StringBuilder();
-            for (String i : this.contents) {
-                finStr.append(i).append("\n");
+        lock.lock();
+        try {
+            File f = path.toFile();
+            // Never read or nothing changed means it's already the same as what's on disk
+            if (contents == null || !dirty) {
+                return true;
             }
+            if (this.writable && f.canWrite()) {
+                boolean append = appendOnly && flushedLines <= contents.size();
+                StringBuilder finStr = new StringBuilder();
+                for (int i = append ? flushedLines : 0; i < contents.size(); i++) {
+                    finStr.append(contents.get(i)).append("\n");
+                }
+
+                try {
+                    FileWriter fw = new FileWriter(f.getAbsoluteFile(), append);
+                    BufferedWriter bw = new BufferedWriter(fw);
+                    bw.write(finStr.toString());
+                    bw.close();
+                    dirty = false;
+                    flushedLines = contents.size();
+                    appendOnly = true;
+                    ContentCache.shared.touch(this, bytes);
+                } catch (Exception e) {
+                    printError(e);
+                    return false;
+                } finally {
+                    ChunkCache.invalidate(path);
+                }
 
-            try {
-                FileWriter fw = new FileWriter(f.getAbsoluteFile(), false);
-                BufferedWriter bw = new BufferedWriter(fw);
-                bw.write(finStr.toString());
-                bw.close();
-            } catch (Exception e) {
-                printError(e);
-                return false;
+                return true;
             }
-
-            return true;
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     public void execute(Machine machine) {
@@ -316,9 +628,9 @@ public class DiskFile {
             LuaLib lib = new LuaLib(execPerms);
             Globals globals = lib.prepUserGlobals(machine);
             try {
-                globals.loadfile(path.toString()).call();
+                loadChunk(globals).call();
             } catch (Exception e) {
-                machine.guiHandler.p_terminal.println(Terminal.wrapInColor(e.getMessage(), "f7261b"));
+                machine.guiHandler.printError(e.getMessage());
                 e.printStackTrace();
             }
         }
@@ -330,9 +642,9 @@ public class DiskFile {
             LuaLib lib = new LuaLib(execPerms);
             Globals globals = lib.prepUserGlobals(machine);
             try {
-                globals.loadfile(path.toString()).call();
+                loadChunk(globals).call();
             } catch (Exception e) {
-                machine.guiHandler.p_terminal.println(Terminal.wrapInColor(e.getMessage(), "f7261b"));
+                machine.guiHandler.printError(e.getMessage());
                 printError(e);
             }
         }
@@ -345,9 +657,9 @@ public class DiskFile {
             // Add data
             globals.set("params", args);
             try {
-                globals.loadfile(path.toString()).call();
+                loadChunk(globals).call();
             } catch (Exception e) {
-                machine.guiHandler.p_terminal.println(Terminal.wrapInColor(DiskUtil.removeObjectivePaths(e.getMessage(), machine.desig), "f7261b"));
+                machine.guiHandler.printError(DiskUtil.removeObjectivePaths(e.getMessage(), machine.desig));
                 printError(e);
             }
         }
@@ -360,9 +672,9 @@ public class DiskFile {
             // Add data
             globals.set("params", data.table);
             try {
-                globals.loadfile(path.toString()).call();
+                loadChunk(globals).call();
             } catch (Exception e) {
-                machine.guiHandler.p_terminal.println(Terminal.wrapInColor(DiskUtil.removeObjectivePaths(e.getMessage(), machine.desig), "f7261b"));
+                machine.guiHandler.printError(DiskUtil.removeObjectivePaths(e.getMessage(), machine.desig));
                 printError(e);
             }
         }
@@ -0,0 +1,134 @@
+package com.morticia.compsim.Util.Disk;
+
+import com.morticia.compsim.Machine.Event.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds on to DiskFiles with changes that haven't been written yet and writes them all out together every so often
+ * <p>
+ * Edits to a write behind file just mark it dirty and land here, so a script changing a file a thousand times in a second
+ * costs one write instead of a thousand. A flush is queued on the shared TimerWheel when the first file goes dirty and run
+ * on this class's own thread so the wheel never waits on the disk. Machines flush their own files when they save, and
+ * everything is flushed when the runtime stops or the JVM shuts down
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/11/22
+ */
+
+public class WriteBehind {
+    public static final long defaultFlushMillis = 1000;
+    public static final WriteBehind shared = new WriteBehind(defaultFlushMillis);
+
+    // Longest a change waits before being written, in milliseconds
+    public volatile long flushMillis;
+
+    private final Set<DiskFile> dirty;
+    private final AtomicBoolean flushQueued;
+    private final ExecutorService writer;
+
+    public long flushes;
+    public long filesWritten;
+
+    /**
+     * Constructor
+     *
+     * @param flushMillis Longest a change waits before being written, in milliseconds
+     */
+    public WriteBehind(long flushMillis) {
+        this.flushMillis = Math.max(1, flushMillis);
+        this.dirty = ConcurrentHashMap.newKeySet();
+        this.flushQueued = new AtomicBoolean(false);
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "WriteBehind");
+            t.setDaemon(true);
+            return t;
+        });
+        // Anything still waiting goes to disk on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushAll, "WriteBehind-shutdown"));
+    }
+
+    /**
+     * Adds a file to be written on the next flush, queuing a flush if there isn't one
+     *
+     * @param file File with changes
+     */
+    public void schedule(DiskFile file) {
+        dirty.add(file);
+        if (flushQueued.compareAndSet(false, true)) {
+            TimerWheel.shared.schedule(() -> writer.execute(this::flushQueued), flushMillis);
+        }
+    }
+
+    private void flushQueued() {
+        // Cleared first so anything going dirty during the flush queues the next one
+        flushQueued.set(false);
+        flushAll();
+    }
+
+    /**
+     * Writes every waiting file
+     */
+    public void flushAll() {
+        flush("");
+    }
+
+    /**
+     * Writes every waiting file under a directory, used by machines to flush their own files when they save
+     *
+     * @param dirPrefix Start of the dir of the files to write, relative to the Gamedata folder like DiskFile#dir
+     */
+    public void flush(String dirPrefix) {
+        int written = 0;
+        List<DiskFile> failed = new ArrayList<>();
+        for (DiskFile i : dirty) {
+            if (!i.dir.startsWith(dirPrefix)) {
+                continue;
+            }
+            dirty.remove(i);
+            if (i.isDirty()) {
+                if (i.writeBuffer()) {
+                    written++;
+                } else {
+                    failed.add(i);
+                }
+            }
+        }
+        // Files that couldn't be written still have their changes, they're put back after the loop so this flush doesn't
+        // keep retrying them
+        for (DiskFile i : failed) {
+            if (i.isDirty()) {
+                schedule(i);
+            }
+        }
+        synchronized (this) {
+            flushes++;
+            filesWritten += written;
+        }
+    }
+
+    /**
+     * Drops a file without writing it, for files that got written some other way
+     *
+     * @param file File to drop
+     */
+    public void cancel(DiskFile file) {
+        dirty.remove(file);
+    }
+
+    public int size() {
+        return dirty.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Waiting: " + dirty.size() + " | Flush every: " + flushMillis + "ms | Flushes: " + flushes + " | Files written: " + filesWritten;
+    }
+}
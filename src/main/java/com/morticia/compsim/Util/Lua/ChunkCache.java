@@ -0,0 +1,121 @@
+package com.morticia.compsim.Util.Lua;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps compiled scripts around so they don't have to be read and compiled again every time they run
+ * <p>
+ * Prototypes never change once compiled, so one is shared between every machine and bound to fresh globals on each load.
+ * Entries are checked against the file's modification time and size, and dropped when the file is written through a DiskFile.
+ * Only the most recently used maxEntries scripts are kept, so scripts that were run once don't stay in memory forever
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/4/22
+ */
+
+public class ChunkCache {
+    public static final int defaultMaxEntries = 512;
+
+    // Most scripts kept compiled at once
+    public static volatile int maxEntries = defaultMaxEntries;
+
+    // Access order, so the eldest entry is the least recently used. Only touched while holding its own lock
+    private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private ChunkCache() {}
+
+    private static class Entry {
+        final long modified;
+        final long size;
+        final Prototype prototype;
+
+        Entry(long modified, long size, Prototype prototype) {
+            this.modified = modified;
+            this.size = size;
+            this.prototype = prototype;
+        }
+    }
+
+    /**
+     * Loads a script as a function bound to the given globals, works the same as Globals#loadfile
+     *
+     * @param globals Globals the script will run with
+     * @param path Path to the script on the host disk
+     * @return The loaded script, ready to call
+     */
+    public static LuaValue load(Globals globals, Path path) {
+        String key = path.toString();
+        File f = path.toFile();
+        long modified = f.lastModified();
+        long size = f.length();
+
+        Entry e;
+        synchronized (cache) {
+            e = cache.get(key);
+        }
+        if (e == null || e.modified != modified || e.size != size) {
+            try (InputStream is = new BufferedInputStream(new FileInputStream(f))) {
+                e = new Entry(modified, size, globals.loadPrototype(is, "@" + key, "bt"));
+            } catch (LuaError err) {
+                throw err;
+            } catch (Exception err) {
+                throw new LuaError("load " + key + ": " + err);
+            }
+            // Compiled outside the lock so one big script doesn't hold up every other load
+            synchronized (cache) {
+                cache.put(key, e);
+            }
+        }
+
+        return new LuaClosure(e.prototype, globals);
+    }
+
+    /**
+     * Drops the compiled copy of a script, called whenever its contents change
+     *
+     * @param path Path to the script on the host disk
+     */
+    public static void invalidate(Path path) {
+        synchronized (cache) {
+            cache.remove(path.toString());
+        }
+    }
+
+    /**
+     * Drops every compiled script
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Gets the number of scripts currently cached
+     *
+     * @return Number of cached scripts
+     */
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
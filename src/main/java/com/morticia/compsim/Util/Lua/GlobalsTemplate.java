@@ -0,0 +1,137 @@
+package com.morticia.compsim.Util.Lua;
+
+import com.morticia.compsim.Util.Lua.Tables.ReadOnlyLuaTable;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.PackageLib;
+import org.luaj.vm2.lib.TwoArgFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A set of libraries built once and shared by every script run with the same permissions on a machine
+ * <p>
+ * The libraries are read-only and only reachable through the metatable of each script's own globals, so anything a script
+ * assigns stays in its own globals and can't leak into the next run. The bigger libraries are only built the first time a
+ * script asks for them by name, and anything the permissions didn't include simply isn't there
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/5/22
+ */
+
+public class GlobalsTemplate {
+    public final LuaTable libraries;
+    public final LuaTable metatable;
+
+    // Global name -> library that sets it, built on first touch
+    public final Map<String, Supplier<TwoArgFunction>> lazyLibraries;
+    public final ConcurrentHashMap<String, LuaValue> boundLibraries;
+
+    /**
+     * Constructor, loads the given libraries into a scratch environment and keeps the tables they made
+     *
+     * @param libs Libraries to load straight away
+     * @param lazyLibs Libraries to load the first time the global they set is read, keyed by that global's name
+     */
+    public GlobalsTemplate(List<TwoArgFunction> libs, Map<String, Supplier<TwoArgFunction>> lazyLibs) {
+        Globals scratch = new Globals();
+        // Libraries register themselves in package.loaded, so that has to exist
+        scratch.load(new PackageLib());
+        List<LuaValue> skip = keys(scratch);
+
+        for (TwoArgFunction i : libs) {
+            scratch.load(i);
+        }
+
+        LuaTable table = new LuaTable();
+        for (Varargs n = scratch.next(LuaValue.NIL); !n.arg1().isnil(); n = scratch.next(n.arg1())) {
+            if (!skip.contains(n.arg1())) {
+                table.rawset(n.arg1(), n.arg(2));
+            }
+        }
+
+        this.libraries = new ReadOnlyLuaTable(table);
+        this.lazyLibraries = lazyLibs;
+        this.boundLibraries = new ConcurrentHashMap<>();
+        this.metatable = new LuaTable();
+        this.metatable.set(LuaValue.INDEX, new index(this));
+    }
+
+    /**
+     * Gets a shared library, building it if it's lazy and hasn't been used yet
+     *
+     * @param name Name of the global
+     * @return The library, nil if there isn't one with that name
+     */
+    public LuaValue get(LuaValue name) {
+        LuaValue v = libraries.rawget(name);
+        if (!v.isnil() || !name.isstring()) {
+            return v;
+        }
+
+        String key = name.tojstring();
+        Supplier<TwoArgFunction> lib = lazyLibraries.get(key);
+        if (lib == null) {
+            return LuaValue.NIL;
+        }
+        return boundLibraries.computeIfAbsent(key, k -> bind(k, lib.get()));
+    }
+
+    /**
+     * Loads a single library on its own and pulls out the global it set
+     *
+     * @param name Name of the global the library sets
+     * @param lib Library to load
+     * @return The library table, read-only
+     */
+    private static LuaValue bind(String name, TwoArgFunction lib) {
+        LuaTable env = new LuaTable();
+        lib.call(LuaValue.valueOf(name), env);
+        LuaValue v = env.rawget(name);
+        return v.istable() ? new ReadOnlyLuaTable(v) : v;
+    }
+
+    public static class index extends TwoArgFunction {
+        GlobalsTemplate template;
+
+        public index(GlobalsTemplate template) {
+            this.template = template;
+        }
+
+        @Override
+        public LuaValue call(LuaValue table, LuaValue key) {
+            return template.get(key);
+        }
+    }
+
+    /**
+     * Makes the shared libraries visible from a script's globals
+     *
+     * @param globals Globals to attach to, should already have the package library loaded
+     */
+    public void apply(Globals globals) {
+        globals.setmetatable(metatable);
+        if (globals.package_ != null) {
+            for (Varargs n = libraries.next(LuaValue.NIL); !n.arg1().isnil(); n = libraries.next(n.arg1())) {
+                if (n.arg(2).istable()) {
+                    globals.package_.setIsLoaded(n.arg1().tojstring(), (LuaTable) n.arg(2));
+                }
+            }
+        }
+    }
+
+    private static List<LuaValue> keys(LuaTable table) {
+        List<LuaValue> keys = new ArrayList<>();
+        for (Varargs n = table.next(LuaValue.NIL); !n.arg1().isnil(); n = table.next(n.arg1())) {
+            keys.add(n.arg1());
+        }
+        return keys;
+    }
+}
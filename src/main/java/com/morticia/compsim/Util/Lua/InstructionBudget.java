@@ -0,0 +1,223 @@
+package com.morticia.compsim.Util.Lua;
+
+import com.morticia.compsim.Machine.Filesystem.ExecutionPermissions;
+import com.morticia.compsim.Machine.Machine;
+import com.morticia.compsim.Machine.Process.MachineProcess;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.DebugLib;
+
+/**
+ * Stops a script once it's run too many instructions or for too long, so one stuck script can't hold up the thread
+ * ticking every other machine
+ * <p>
+ * This sits in the globals as the debug hook but never gets exposed to lua as the debug library. Once a script goes over
+ * it errors on every instruction after that, so catching the error with pcall doesn't let it keep going
+ * <p>
+ * Processes also use it to time-slice, after a slice worth of instructions the process is preempted and goes back to
+ * waiting its turn. Being preempted doesn't start the budget over, so a process that never waits or yields still gets
+ * aborted once its whole run goes over. Time spent waiting to be resumed doesn't count towards the time budget
+ *
+ * @author Morticia
+ * @version 1.0
+ * @since 8/6/22
+ */
+
+public class InstructionBudget extends DebugLib {
+    // Instructions between clock checks, reading the clock every instruction is way too slow
+    private static final int timeCheckInterval = 1024;
+
+    public Machine machine;
+    // 0 means unlimited for both of these
+    public final long maxInstructions;
+    public final long maxNanos;
+
+    public long instructions;
+    private long startNanos;
+    // Time used before the clock was last paused
+    private long usedNanos;
+    private boolean exceeded;
+
+    // Process to preempt every sliceInstructions instructions, null if this isn't sliced
+    public MachineProcess process;
+    public long sliceInstructions;
+    private long sliceCount;
+
+    /**
+     * Constructor
+     *
+     * @param machine Machine the script is running on, used for logging
+     * @param maxInstructions Most instructions the script can run, 0 for no limit
+     * @param maxMillis Most time the script can run for in milliseconds, 0 for no limit
+     */
+    public InstructionBudget(Machine machine, long maxInstructions, long maxMillis) {
+        this.machine = machine;
+        this.maxInstructions = Math.max(0, maxInstructions);
+        this.maxNanos = Math.max(0, maxMillis) * 1_000_000L;
+    }
+
+    /**
+     * Puts a budget on the given globals if the permissions and machine call for one. Permissions set to -1 use the
+     * machine's limit
+     *
+     * @param globals Globals the script will run with
+     * @param machine Machine the script is running on
+     * @param execPerms Permissions the script is running with
+     */
+    public static void install(Globals globals, Machine machine, ExecutionPermissions execPerms) {
+        long instr = execPerms.instructionBudget < 0 ? machine.instructionBudget : execPerms.instructionBudget;
+        long time = execPerms.timeBudget < 0 ? machine.timeBudget : execPerms.timeBudget;
+        if (instr > 0 || time > 0) {
+            new InstructionBudget(machine, instr, time).bind(globals);
+        }
+    }
+
+    /**
+     * Sets this as the globals' debug hook. The debug library only keeps track of the call stack for tracebacks once it's
+     * been loaded into some globals, so it's loaded and then taken straight back out of what scripts can see
+     *
+     * @param globals Globals the script will run with
+     */
+    private void bind(Globals globals) {
+        LuaValue debug = globals.rawget("debug");
+        LuaValue pkg = globals.rawget("package");
+        LuaValue loaded = pkg.istable() ? pkg.get("loaded") : LuaValue.NIL;
+        LuaValue loadedDebug = loaded.istable() ? loaded.get("debug") : LuaValue.NIL;
+
+        call(LuaValue.valueOf("debug"), globals);
+
+        globals.rawset("debug", debug);
+        if (loaded.istable()) {
+            loaded.set("debug", loadedDebug);
+        }
+    }
+
+    /**
+     * Makes the given globals preempt a process every so many instructions, adding a budget with no limits if there
+     * isn't one already
+     *
+     * @param globals Globals the process runs with
+     * @param process Process to preempt
+     * @param sliceInstructions Instructions per slice
+     */
+    public static void slice(Globals globals, MachineProcess process, long sliceInstructions) {
+        if (!(globals.debuglib instanceof InstructionBudget)) {
+            new InstructionBudget(process.machine, 0, 0).bind(globals);
+        }
+        InstructionBudget b = (InstructionBudget) globals.debuglib;
+        b.process = process;
+        b.sliceInstructions = Math.max(0, sliceInstructions);
+        b.sliceCount = 0;
+    }
+
+    /**
+     * Starts the budget over, for globals that get used for more than one execution
+     *
+     * @param globals Globals to reset the budget on
+     */
+    public static void reset(Globals globals) {
+        if (globals.debuglib instanceof InstructionBudget) {
+            InstructionBudget b = (InstructionBudget) globals.debuglib;
+            b.instructions = 0;
+            b.startNanos = 0;
+            b.usedNanos = 0;
+            b.exceeded = false;
+            b.sliceCount = 0;
+        }
+    }
+
+    /**
+     * Starts a new slice after a preemption, keeping the instructions and time the run has used so far. The clock is
+     * paused until the next instruction so time spent waiting to be resumed isn't counted
+     *
+     * @param globals Globals to start a new slice on
+     */
+    public static void nextSlice(Globals globals) {
+        if (globals.debuglib instanceof InstructionBudget) {
+            InstructionBudget b = (InstructionBudget) globals.debuglib;
+            if (b.startNanos != 0) {
+                b.usedNanos += System.nanoTime() - b.startNanos;
+                b.startNanos = 0;
+            }
+            b.sliceCount = 0;
+        }
+    }
+
+    /**
+     * Calls a function in globals that belong to a process that isn't running, like a subscriber the process registered.
+     * The call gets a fresh budget and isn't sliced, and the process's own budget is put back afterwards so the call
+     * doesn't count against it or wipe it
+     *
+     * @param globals Globals the function was made in
+     * @param function Function to call
+     * @param arg Argument to call it with
+     * @return What the function returned
+     */
+    public static LuaValue callOutside(Globals globals, LuaFunction function, LuaValue arg) {
+        if (!(globals.debuglib instanceof InstructionBudget)) {
+            return function.call(arg);
+        }
+        InstructionBudget b = (InstructionBudget) globals.debuglib;
+        long instructions = b.instructions;
+        long startNanos = b.startNanos;
+        long usedNanos = b.usedNanos;
+        boolean exceeded = b.exceeded;
+        long sliceCount = b.sliceCount;
+        MachineProcess process = b.process;
+        b.instructions = 0;
+        b.startNanos = 0;
+        b.usedNanos = 0;
+        b.exceeded = false;
+        b.process = null;
+        try {
+            return function.call(arg);
+        } finally {
+            b.instructions = instructions;
+            b.startNanos = startNanos;
+            b.usedNanos = usedNanos;
+            b.exceeded = exceeded;
+            b.sliceCount = sliceCount;
+            b.process = process;
+        }
+    }
+
+    @Override
+    public void onInstruction(int pc, Varargs v, int top) {
+        long n = ++instructions;
+        if (exceeded) {
+            throw new LuaError("execution budget exceeded");
+        }
+
+        if (maxInstructions > 0 && n > maxInstructions) {
+            abort("instruction budget exceeded (" + maxInstructions + " instructions)");
+        }
+
+        if (maxNanos > 0 && (n & (timeCheckInterval - 1)) == 1) {
+            long now = System.nanoTime();
+            if (startNanos == 0) {
+                startNanos = now;
+            } else if (usedNanos + now - startNanos > maxNanos) {
+                abort("time budget exceeded (" + (maxNanos / 1_000_000L) + "ms)");
+            }
+        }
+
+        // Keeps the current line up to date for tracebacks
+        super.onInstruction(pc, v, top);
+
+        if (process != null && sliceInstructions > 0 && ++sliceCount >= sliceInstructions) {
+            sliceCount = 0;
+            process.preempt();
+        }
+    }
+
+    private void abort(String message) {
+        exceeded = true;
+        if (machine != null && machine.logHandler != null) {
+            machine.logHandler.log("Script stopped: " + message);
+        }
+        throw new LuaError(message);
+    }
+}
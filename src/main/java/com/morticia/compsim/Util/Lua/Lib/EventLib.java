@@ -1,12 +1,15 @@
 package com.morticia.compsim.Util.Lua.Lib;
 
 import com.morticia.compsim.Machine.Event.Event;
+import com.morticia.compsim.Machine.Event.EventBus;
+import com.morticia.compsim.Machine.Event.EventStats;
 import com.morticia.compsim.Machine.Machine;
-import com.morticia.compsim.Util.Lua.LuaParamData;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import org.luaj.vm2.LuaNil;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.ThreeArgFunction;
 import org.luaj.vm2.lib.TwoArgFunction;
 import org.luaj.vm2.lib.ZeroArgFunction;
 
@@ -25,20 +28,46 @@ public class EventLib extends TwoArgFunction {
         LuaTable library = tableOf();
         library.set("register_event", new register_event(machine));
         library.set("get_events", new get_events(machine));
+        library.set("queue_stats", new queue_stats(machine));
+        library.set("stats", new stats(machine));
+        library.set("schedule", new schedule(machine, false));
+        library.set("every", new schedule(machine, true));
+        library.set("cancel", new cancel(machine));
+        library.set("subscribe", new subscribe(machine));
+        library.set("unsubscribe", new unsubscribe(machine));
+        library.set("publish", new publish(machine));
+        library.set("join", new join(machine));
+        library.set("leave", new leave(machine));
         env.set("event", library);
         return library;
     }
 
-    public static class register_event extends TwoArgFunction {
+    public static class register_event extends ThreeArgFunction {
         Machine machine;
 
         public register_event(Machine machine) {
             this.machine = machine;
         }
 
+        // register_event(name, type[, {coalesce = "keep_last" | "merge" | "debounce", debounce_ms = n,
+        //     priority = "interactive" | "system" | "network" | "bulk"}])
         @Override
-        public LuaValue call(LuaValue name, LuaValue type) {
+        public LuaValue call(LuaValue name, LuaValue type, LuaValue options) {
             Event event = new Event(machine, name.tojstring(), type.tojstring());
+            if (options.istable()) {
+                Event.Coalesce c = Event.Coalesce.fromString(options.get("coalesce").optjstring("none"));
+                if (c == null) {
+                    return Err.getErrorTable("unknown coalesce policy: " + options.get("coalesce").tojstring(), machine.defaultStream);
+                }
+                event.setCoalesce(c, options.get("debounce_ms").optlong(0));
+                if (!options.get("priority").isnil()) {
+                    Event.Priority p = Event.Priority.fromString(options.get("priority").tojstring());
+                    if (p == null) {
+                        return Err.getErrorTable("unknown event priority: " + options.get("priority").tojstring(), machine.defaultStream);
+                    }
+                    event.setPriority(p);
+                }
+            }
             if (machine.eventHandler.registerEvent(event)) {
                 return event.toTable();
             } else {
@@ -64,6 +93,166 @@ public class EventLib extends TwoArgFunction {
         }
     }
 
+    public static class queue_stats extends ZeroArgFunction {
+        Machine machine;
+
+        public queue_stats(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call() {
+            LuaTable table = new LuaTable();
+            table.set("depth", machine.eventHandler.events.size());
+            table.set("enqueued", machine.eventHandler.events.enqueued.get());
+            table.set("handled", machine.eventHandler.events.handled.get());
+            table.set("unhandled", machine.eventHandler.events.unhandled.get());
+            table.set("overflows", machine.eventHandler.events.overflows.get());
+            table.set("coalesced", machine.eventHandler.coalescedCount.get());
+            LuaTable lanes = new LuaTable();
+            for (Event.Priority i : Event.Priority.values()) {
+                lanes.set(i.name(), machine.eventHandler.events.size(i.ordinal()));
+            }
+            table.set("lanes", lanes);
+            return table;
+        }
+    }
+
+    // stats() -> {event_name = {wait = {...}, run = {...}}}, stats(name) -> {wait = {...}, run = {...}}. Times are in
+    // microseconds
+    public static class stats extends OneArgFunction {
+        Machine machine;
+
+        public stats(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue name) {
+            if (!name.isnil()) {
+                EventStats s = machine.eventHandler.stats.get(name.checkjstring());
+                return s == null ? new EventStats(name.tojstring()).toTable() : s.toTable();
+            }
+            LuaTable table = new LuaTable();
+            for (EventStats i : machine.eventHandler.stats.values()) {
+                table.set(i.eventName, i.toTable());
+            }
+            return table;
+        }
+    }
+
+    public static class schedule extends ThreeArgFunction {
+        Machine machine;
+        boolean periodic;
+
+        public schedule(Machine machine, boolean periodic) {
+            this.machine = machine;
+            this.periodic = periodic;
+        }
+
+        @Override
+        public LuaValue call(LuaValue name, LuaValue millis, LuaValue data) {
+            long delay = Math.max(0, millis.checklong());
+            LuaTable payload = data.istable() ? data.checktable() : new LuaTable();
+            // every(name, period, data) fires first after one period
+            int id = machine.eventHandler.scheduleEvent(name.checkjstring(), payload, delay, periodic ? Math.max(1, delay) : 0);
+            return LuaValue.valueOf(id);
+        }
+    }
+
+    public static class cancel extends OneArgFunction {
+        Machine machine;
+
+        public cancel(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue id) {
+            return LuaValue.valueOf(machine.eventHandler.cancelTimer(id.checkint()));
+        }
+    }
+
+    // subscribe(name, fn[, order]) -> id. Called from a process, the subscription ends when the process stops running
+    public static class subscribe extends ThreeArgFunction {
+        Machine machine;
+
+        public subscribe(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue name, LuaValue fn, LuaValue order) {
+            MachineProcess owner = MachineProcess.current();
+            if (owner == null || owner.machine != machine) {
+                // Nothing would keep the globals the function runs in alive
+                return Err.getErrorTable("event.subscribe can only be called from a process", machine.defaultStream);
+            }
+            int id = machine.eventHandler.subscribe(name.checkjstring(), fn.checkfunction(), owner, order.optint(0));
+            return LuaValue.valueOf(id);
+        }
+    }
+
+    public static class unsubscribe extends OneArgFunction {
+        Machine machine;
+
+        public unsubscribe(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue id) {
+            return LuaValue.valueOf(machine.eventHandler.unsubscribe(id.checkint()));
+        }
+    }
+
+    // publish(topic, data) -> number of machines it was queued on
+    public static class publish extends TwoArgFunction {
+        Machine machine;
+
+        public publish(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue topic, LuaValue data) {
+            LuaTable payload = data.istable() ? data.checktable() : new LuaTable();
+            return LuaValue.valueOf(EventBus.shared.publish(topic.checkjstring(), payload, machine));
+        }
+    }
+
+    // join(topic[, event_name]), publishes to the topic raise event_name here, the topic's name if there isn't one
+    public static class join extends TwoArgFunction {
+        Machine machine;
+
+        public join(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue topic, LuaValue eventName) {
+            String t = topic.checkjstring();
+            String name = eventName.optjstring(t);
+            if (!EventBus.shared.join(t, machine, name)) {
+                return Err.getErrorTable("event " + name + " already exists and isn't a bus event", machine.defaultStream);
+            }
+            return LuaValue.TRUE;
+        }
+    }
+
+    public static class leave extends OneArgFunction {
+        Machine machine;
+
+        public leave(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue topic) {
+            return LuaValue.valueOf(EventBus.shared.leave(topic.checkjstring(), machine));
+        }
+    }
+
     public static class trigger extends OneArgFunction {
         Event event;
 
@@ -73,9 +262,9 @@ public class EventLib extends TwoArgFunction {
 
         @Override
         public LuaValue call(LuaValue data) {
-            LuaParamData d = new LuaParamData(new ArrayList<>(event.eventData), false);
-            d.addTable("params", data.checktable());
-            event.machine.eventHandler.triggerEvent(event.eventName, d);
+            LuaTable payload = new LuaTable();
+            payload.set("params", data.checktable());
+            event.machine.eventHandler.triggerEvent(event.eventName, payload);
             return LuaNil.NIL;
         }
     }
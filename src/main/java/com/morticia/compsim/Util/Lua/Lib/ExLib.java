@@ -1,6 +1,7 @@
 package com.morticia.compsim.Util.Lua.Lib;
 
 import com.morticia.compsim.Machine.Machine;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.lib.OneArgFunction;
@@ -18,6 +19,7 @@ public class ExLib extends TwoArgFunction {
         LuaTable library = tableOf();
         library.set("execute", new execute(machine));
         library.set("execute_args", new execute_args(machine));
+        library.set("sleep", new sleep(machine));
         env.set("ex", library);
         return library;
     }
@@ -59,4 +61,23 @@ public class ExLib extends TwoArgFunction {
             }
         }
     }
+
+    public static class sleep extends OneArgFunction {
+        Machine machine;
+
+        public sleep(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue millis) {
+            // Sleeping outside a process would hold up the whole machine, so it's only allowed in one
+            MachineProcess process = MachineProcess.current();
+            if (process == null) {
+                return Err.getErrorTable("sleep can only be used inside a process", machine.defaultStream);
+            }
+            process.await(null, Math.max(1, millis.checklong()));
+            return Err.getBErrorTable();
+        }
+    }
 }
@@ -4,6 +4,7 @@ import com.morticia.compsim.Machine.Filesystem.FilesystemObject;
 import com.morticia.compsim.Machine.Filesystem.VirtualFile;
 import com.morticia.compsim.Machine.Filesystem.VirtualFolder;
 import com.morticia.compsim.Machine.Machine;
+import com.morticia.compsim.Util.Disk.DiskFile;
 import org.luaj.vm2.LuaNil;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
@@ -12,6 +13,7 @@ import org.luaj.vm2.lib.TwoArgFunction;
 import org.luaj.vm2.lib.ZeroArgFunction;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class IOLib extends TwoArgFunction {
@@ -169,7 +171,8 @@ public class IOLib extends TwoArgFunction {
         @Override
         public LuaValue call() {
             LuaTable retVal = new LuaTable();
-            for (String i : file.trueFile.contents) {
+            file.touch();
+            for (String i : file.trueFile.getContents()) {
                 retVal.add(LuaValue.valueOf(i));
             }
             return retVal;
@@ -189,7 +192,8 @@ public class IOLib extends TwoArgFunction {
             for (int i = 1; i <= new_contents.length(); i++) {
                 container.add(new_contents.get(i).tojstring());
             }
-            file.trueFile.contents = container;
+            file.touch();
+            file.trueFile.setContents(container);
             return LuaNil.NIL;
         }
     }
@@ -204,6 +208,7 @@ public class IOLib extends TwoArgFunction {
         @Override
         public LuaValue call(LuaValue args) {
             try {
+                file.touch();
                 file.trueFile.execute(file.filesystem.machine, args);
                 return Err.getBErrorTable();
             } catch (Exception e) {
@@ -226,6 +231,42 @@ public class IOLib extends TwoArgFunction {
         }
     }
 
+    public static class set_durability extends OneArgFunction {
+        VirtualFile file;
+
+        public set_durability(VirtualFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public LuaValue call(LuaValue mode) {
+            DiskFile.Durability d = DiskFile.Durability.fromString(mode.tojstring());
+            if (d == null) {
+                return Err.getErrorTable("durability has to be write_behind or write_through", file.filesystem.machine.defaultStream);
+            }
+            file.trueFile.durability = d;
+            if (d == DiskFile.Durability.write_through) {
+                // Anything already waiting goes out now so it's as durable as the edits after it
+                file.trueFile.flush();
+            }
+            return LuaValue.NIL;
+        }
+    }
+
+    public static class flush extends ZeroArgFunction {
+        VirtualFile file;
+
+        public flush(VirtualFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public LuaValue call() {
+            file.touch();
+            return LuaValue.valueOf(file.trueFile.flush());
+        }
+    }
+
     // Folder functions
 
     public static class get_children extends ZeroArgFunction {
@@ -237,11 +278,14 @@ public class IOLib extends TwoArgFunction {
 
         @Override
         public LuaValue call() {
-            LuaTable retVal = new LuaTable();
-            for (VirtualFolder i : folder.folders) {
+            // Children hand out their cached tables, so this is just the one list
+            Collection<VirtualFolder> folders = folder.getFolders();
+            Collection<VirtualFile> files = folder.getFiles();
+            LuaTable retVal = new LuaTable(folders.size() + files.size(), 0);
+            for (VirtualFolder i : folders) {
                 retVal.add(i.toTable());
             }
-            for (VirtualFile i : folder.files) {
+            for (VirtualFile i : files) {
                 retVal.add(i.toTable());
             }
             return retVal;
@@ -320,6 +364,7 @@ public class IOLib extends TwoArgFunction {
         @Override
         public LuaValue call(LuaValue perms) {
             object.perms.initPerms(perms.tojstring());
+            object.modified = true;
             return LuaNil.NIL;
         }
     }
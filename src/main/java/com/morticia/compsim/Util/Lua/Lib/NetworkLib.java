@@ -4,6 +4,7 @@ import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Machine.Networking.Network;
 import com.morticia.compsim.Machine.Networking.Packet;
 import com.morticia.compsim.Machine.Networking.Socket;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import org.luaj.vm2.LuaNil;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
@@ -28,6 +29,7 @@ public class NetworkLib extends TwoArgFunction {
         library.set("get_sockets", new get_sockets(machine));
         library.set("open_socket", new open_socket(machine));
         library.set("get_packet", new get_packet(machine));
+        library.set("wait_packet", new wait_packet(machine));
         env.set("network", library);
         return library;
     }
@@ -209,4 +211,27 @@ public class NetworkLib extends TwoArgFunction {
             return LuaNil.NIL;
         }
     }
+
+    public static class wait_packet extends OneArgFunction {
+        Machine machine;
+
+        public wait_packet(Machine machine) {
+            this.machine = machine;
+        }
+
+        @Override
+        public LuaValue call(LuaValue timeout) {
+            MachineProcess process = MachineProcess.current();
+            if (process == null) {
+                return Err.getErrorTable("wait_packet can only be used inside a process", machine.defaultStream);
+            }
+            machine.networkHandler.packetWaiters.add(process);
+            try {
+                // Nil if it timed out
+                return process.await(null, timeout.optlong(0));
+            } finally {
+                machine.networkHandler.packetWaiters.remove(process);
+            }
+        }
+    }
 }
@@ -191,7 +191,12 @@ public class ProcessLib extends TwoArgFunction {
         @Override
         public LuaValue call(LuaValue path) {
             try {
-                process.execFile(path.tojstring());
+                // Inside the process the script just runs, from anywhere else it's started as the process's next run
+                if (MachineProcess.current() == process) {
+                    process.execFile(path.tojstring());
+                } else if (!process.spawn(path.tojstring())) {
+                    return Err.getErrorTable("process is already running", process.stream);
+                }
                 return Err.getBErrorTable();
             } catch (Exception e) {
                 return Err.getErrorTable(e.getMessage(), process.stream);
@@ -220,4 +225,78 @@ public class ProcessLib extends TwoArgFunction {
             return LuaNil.NIL;
         }
     }
+
+    public static class set_continuous extends OneArgFunction {
+        MachineProcess process;
+
+        public set_continuous(MachineProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public LuaValue call(LuaValue luaValue) {
+            process.continuous = luaValue.toboolean();
+            return Err.getBErrorTable();
+        }
+    }
+
+    public static class get_status extends ZeroArgFunction {
+        MachineProcess process;
+
+        public get_status(MachineProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public LuaValue call() {
+            return LuaValue.valueOf(process.statusMsg);
+        }
+    }
+
+    public static class get_nice extends ZeroArgFunction {
+        MachineProcess process;
+
+        public get_nice(MachineProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public LuaValue call() {
+            return LuaValue.valueOf(process.nice);
+        }
+    }
+
+    public static class set_nice extends OneArgFunction {
+        MachineProcess process;
+
+        public set_nice(MachineProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public LuaValue call(LuaValue nice) {
+            try {
+                process.setNice(nice.checkint());
+                return Err.getBErrorTable();
+            } catch (Exception e) {
+                return Err.getErrorTable(e.getMessage(), process.stream);
+            }
+        }
+    }
+
+    public static class get_cpu extends ZeroArgFunction {
+        MachineProcess process;
+
+        public get_cpu(MachineProcess process) {
+            this.process = process;
+        }
+
+        @Override
+        public LuaValue call() {
+            LuaTable table = new LuaTable();
+            table.set("time_ms", LuaValue.valueOf(process.cpuNanos / 1_000_000L));
+            table.set("usage", LuaValue.valueOf(process.getCpuUsage()));
+            return table;
+        }
+    }
 }
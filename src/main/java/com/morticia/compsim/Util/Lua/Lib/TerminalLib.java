@@ -5,6 +5,7 @@ import com.morticia.compsim.Machine.Filesystem.VirtualFile;
 import com.morticia.compsim.Machine.Machine;
 import com.morticia.compsim.Machine.MachineIOStream.IOComponent;
 import com.morticia.compsim.Machine.MachineIOStream.MachineIOStream;
+import com.morticia.compsim.Machine.Process.MachineProcess;
 import com.morticia.compsim.Util.Lua.LuaParamData;
 import org.luaj.vm2.LuaNil;
 import org.luaj.vm2.LuaTable;
@@ -394,6 +395,15 @@ public class TerminalLib extends TwoArgFunction {
 
         @Override
         public LuaValue call(LuaValue in) {
+            // Processes yield until the line comes in instead of holding up the machine
+            MachineProcess process = MachineProcess.current();
+            if (process != null) {
+                boolean fresh = in.isstring();
+                terminal.requestLine(fresh ? in.checkjstring() : null);
+                process.await(() -> terminal.hasLine(fresh), 0);
+                return LuaValue.valueOf(terminal.takeLine());
+            }
+
             if (in.isstring()) {
                 return LuaValue.valueOf(terminal.nextLine(in.checkjstring()));
             } else {
@@ -12,8 +12,15 @@ import org.luaj.vm2.lib.Bit32Lib;
 import org.luaj.vm2.lib.OsLib;
 import org.luaj.vm2.lib.PackageLib;
 import org.luaj.vm2.lib.TableLib;
+import org.luaj.vm2.lib.TwoArgFunction;
 import org.luaj.vm2.lib.jse.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
 /**
  * This is an object which other objects executing lua code will use to automatically handle libraries and permissions
  *
@@ -56,15 +63,10 @@ public class LuaLib {
      * @return The globals created
      */
     public Globals prepUserGlobals(Machine machine) {
-        Globals userGlobals = new Globals();
+        Globals userGlobals = newUserGlobals();
 
-        // Standard globals everyone has
-        userGlobals.load(new JseBaseLib());
-        userGlobals.load(new PackageLib());
-        userGlobals.load(new Bit32Lib());
-        userGlobals.load(new TableLib());
-        userGlobals.load(new JseStringLib());
-        userGlobals.load(new JseMathLib());
+        // Standard globals everyone has, plus the special globals you need perms for, come from a shared template
+        getTemplate(machine, "machine").apply(userGlobals);
 
         userGlobals.set("htmlSpace", "&nbsp;");
 
@@ -73,118 +75,185 @@ public class LuaLib {
 
         userGlobals.set("machine", machine.toTable());
 
+        if (execPerms.libAccess.contains("all") || execPerms.libAccess.contains("std")) {
+            userGlobals.set("print", new TerminalLib.print(machine.defaultStream));
+        }
+
+        if (execPerms.kernelTableAccess) {
+            userGlobals.set("kernel_table", machine.kernelGlobals);
+        }
+
+        InstructionBudget.install(userGlobals, machine, execPerms);
+
+        LoadState.install(userGlobals);
+        LuaC.install(userGlobals);
+
+        return userGlobals;
+    }
+
+    public Globals prepUserGlobals(Machine machine, MachineIOStream stream) {
+        // TODO: 7/2/22 Pass arguments, for terminal + processes made from lua
+        Globals userGlobals = newUserGlobals();
+
+        getTemplate(machine, "stream").apply(userGlobals);
+
+        userGlobals.set("htmlSpace", "&nbsp;");
+
+        if (execPerms.libAccess.contains("all") || execPerms.libAccess.contains("std")) {
+            userGlobals.set("print", new TerminalLib.print(stream));
+        }
+
+        if (execPerms.kernelTableAccess) {
+            // TODO: 7/2/22 Kernel table
+        }
+
+        InstructionBudget.install(userGlobals, machine, execPerms);
+
+        LoadState.install(userGlobals);
+        LuaC.install(userGlobals);
+
+        return userGlobals;
+    }
+
+    /**
+     * Makes a bare globals object with the libraries that have to be bound to it (load, require, _G, etc.)
+     *
+     * @return The globals created
+     */
+    private static Globals newUserGlobals() {
+        Globals userGlobals = new Globals();
+        userGlobals.load(new JseBaseLib());
+        userGlobals.load(new PackageLib());
+        return userGlobals;
+    }
+
+    /**
+     * Gets the shared library template for these permissions, building it the first time it's needed
+     *
+     * @param machine Machine the libraries are bound to
+     * @param variant Which prepUserGlobals the template is for
+     * @return The template
+     */
+    private GlobalsTemplate getTemplate(Machine machine, String variant) {
+        String key = variant + execPerms.libAccess;
+        GlobalsTemplate template = machine.globalsTemplates.get(key);
+        if (template == null) {
+            Map<String, Supplier<TwoArgFunction>> libs = variant.equals("stream") ? getStreamLibs(machine) : getMachineLibs(machine);
+            template = new GlobalsTemplate(getStandardLibs(), libs);
+            GlobalsTemplate existing = machine.globalsTemplates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Gets the standard libraries everyone has, these are small and the string one has to be there for string methods
+     * to work so they're loaded straight away
+     *
+     * @return The libraries
+     */
+    private static List<TwoArgFunction> getStandardLibs() {
+        List<TwoArgFunction> libs = new ArrayList<>();
+        libs.add(new Bit32Lib());
+        libs.add(new TableLib());
+        libs.add(new JseStringLib());
+        libs.add(new JseMathLib());
+        return libs;
+    }
+
+    /**
+     * Gets the libraries these perms give access to when executing on a machine. Nothing is built here, each library
+     * is only made the first time a script uses it
+     *
+     * @param machine Machine to execute on
+     * @return The libraries keyed by the global they set
+     */
+    private Map<String, Supplier<TwoArgFunction>> getMachineLibs(Machine machine) {
+        Map<String, Supplier<TwoArgFunction>> libs = new HashMap<>();
+
         // Special globals you need perms for
         label:
         for (String i : execPerms.libAccess) {
             switch (i) {
                 case "all":
-                    userGlobals.load(new TerminalLib(machine));
-                    userGlobals.set("print", new TerminalLib.print(machine.defaultStream));
-                    userGlobals.load(new IOLib(machine));
-                    userGlobals.load(new ExLib(machine));
-                    userGlobals.load(new UserLib(machine));
-                    userGlobals.load(new EventLib(machine));
-                    userGlobals.load(new NetworkLib(machine));
-                    userGlobals.load(new StreamLib(machine));
-                    break label;
                 case "std":
-                    userGlobals.load(new TerminalLib(machine));
-                    userGlobals.set("print", new TerminalLib.print(machine.defaultStream));
-                    userGlobals.load(new IOLib(machine));
-                    userGlobals.load(new ExLib(machine));
-                    userGlobals.load(new UserLib(machine));
-                    userGlobals.load(new EventLib(machine));
-                    userGlobals.load(new NetworkLib(machine));
-                    userGlobals.load(new StreamLib(machine));
+                    libs.put("terminal", () -> new TerminalLib(machine));
+                    libs.put("io", () -> new IOLib(machine));
+                    libs.put("ex", () -> new ExLib(machine));
+                    libs.put("usr", () -> new UserLib(machine));
+                    libs.put("event", () -> new EventLib(machine));
+                    libs.put("network", () -> new NetworkLib(machine));
+                    libs.put("stream", () -> new StreamLib(machine));
+                    if (i.equals("all")) {
+                        break label;
+                    }
                     break;
                 case "terminal":
-                    userGlobals.load(new TerminalLib(machine));
+                    libs.put("terminal", () -> new TerminalLib(machine));
                     break;
                 case "io":
-                    userGlobals.load(new IOLib(machine));
+                    libs.put("io", () -> new IOLib(machine));
                     break;
                 case "ex":
-                    userGlobals.load(new ExLib(machine));
+                    libs.put("ex", () -> new ExLib(machine));
                     break;
                 case "usr":
-                    userGlobals.load(new UserLib(machine));
+                    libs.put("usr", () -> new UserLib(machine));
                     break;
                 case "event":
-                    userGlobals.load(new EventLib(machine));
+                    libs.put("event", () -> new EventLib(machine));
                     break;
                 case "network":
-                    userGlobals.load(new NetworkLib(machine));
+                    libs.put("network", () -> new NetworkLib(machine));
                     break;
                 case "stream":
-                    userGlobals.load(new StreamLib(machine));
+                    libs.put("stream", () -> new StreamLib(machine));
                     break;
             }
         }
-
-        if (execPerms.kernelTableAccess) {
-            userGlobals.set("kernel_table", machine.kernelGlobals);
-        }
-
-        LoadState.install(userGlobals);
-        LuaC.install(userGlobals);
-
-        return userGlobals;
+        return libs;
     }
 
-    public Globals prepUserGlobals(Machine machine, MachineIOStream stream) {
-        // TODO: 7/2/22 Pass arguments, for terminal + processes made from lua
-        Globals userGlobals = new Globals();
-
-        // Standard globals everyone has
-        userGlobals.load(new JseBaseLib());
-        userGlobals.load(new PackageLib());
-        userGlobals.load(new Bit32Lib());
-        userGlobals.load(new TableLib());
-        userGlobals.load(new JseStringLib());
-        userGlobals.load(new JseMathLib());
-
-        userGlobals.set("htmlSpace", "&nbsp;");
+    /**
+     * Gets the libraries these perms give access to when executing with a stream. Nothing is built here, each library
+     * is only made the first time a script uses it
+     *
+     * @param machine Machine to execute on
+     * @return The libraries keyed by the global they set
+     */
+    private Map<String, Supplier<TwoArgFunction>> getStreamLibs(Machine machine) {
+        Map<String, Supplier<TwoArgFunction>> libs = new HashMap<>();
 
-        // Special globals you need perms for
         label:
         for (String i : execPerms.libAccess) {
             // TODO: 7/2/22 Device interface stuff
             switch (i) {
                 case "all":
-                    userGlobals.load(new TerminalLib(machine));
-                    userGlobals.set("print", new TerminalLib.print(stream));
-                    userGlobals.load(new TerminalLib(machine));
-                    userGlobals.load(new IOLib(machine));
-                    userGlobals.load(new ExLib(machine));
+                    libs.put("terminal", () -> new TerminalLib(machine));
+                    libs.put("io", () -> new IOLib(machine));
+                    libs.put("ex", () -> new ExLib(machine));
                     break label;
                 case "std":
-                    userGlobals.load(new TerminalLib(machine));
-                    userGlobals.set("print", new TerminalLib.print(stream));
-                    userGlobals.load(new UserLib(machine));
-                    userGlobals.load(new IOLib(machine));
+                    libs.put("terminal", () -> new TerminalLib(machine));
+                    libs.put("usr", () -> new UserLib(machine));
+                    libs.put("io", () -> new IOLib(machine));
                     break;
                 case "terminal":
-                    userGlobals.load(new TerminalLib(machine));
+                    libs.put("terminal", () -> new TerminalLib(machine));
                     break;
                 case "io":
-                    userGlobals.load(new IOLib(machine));
+                    libs.put("io", () -> new IOLib(machine));
                     break;
                 case "ex":
-                    userGlobals.load(new ExLib(machine));
+                    libs.put("ex", () -> new ExLib(machine));
                     break;
                 case "usr":
-                    userGlobals.load(new UserLib(machine));
+                    libs.put("usr", () -> new UserLib(machine));
                     break;
             }
         }
-
-        if (execPerms.kernelTableAccess) {
-            // TODO: 7/2/22 Kernel table
-        }
-
-        LoadState.install(userGlobals);
-        LuaC.install(userGlobals);
-
-        return userGlobals;
+        return libs;
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,7 @@ package com.morticia.compsim.Util.Lua;
 
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
 
 import java.util.Arrays;
 import java.util.List;
@@ -44,6 +45,17 @@ public class LuaParamData {
         this.table = toLuaTable();
     }
 
+    /**
+     * Constructor, uses a table that's already been built
+     *
+     * @param table Keyed table to pass to the script
+     */
+    public LuaParamData(LuaTable table) {
+        this.stdList = false;
+        this.data = List.of();
+        this.table = table;
+    }
+
     public LuaParamData addTable(String tableName, LuaTable table) {
         this.table.set(tableName, table);
         return this;
@@ -63,13 +75,49 @@ public class LuaParamData {
             }
             return table;
         } else {
-            for (String i : data) {
-                String[] str_1 = i.split(":");
-                if (str_1.length >= 2) {
-                    table.set(str_1[0].strip(), str_1[1].strip());
-                }
+            putKeyed(table, data);
+        }
+        return table;
+    }
+
+    /**
+     * Adds "key: value" strings to a table as keyed entries. Only the first ':' separates key from value
+     *
+     * @param table Table to add to
+     * @param data Entries to add
+     * @return The table given
+     */
+    public static LuaTable putKeyed(LuaTable table, List<String> data) {
+        for (String i : data) {
+            int sep = i.indexOf(':');
+            if (sep > 0) {
+                table.set(i.substring(0, sep).strip(), i.substring(sep + 1).strip());
             }
         }
         return table;
     }
+
+    /**
+     * Makes a keyed table from "key: value" strings
+     *
+     * @param data Entries to add
+     * @return The table made
+     */
+    public static LuaTable toKeyedTable(List<String> data) {
+        return putKeyed(new LuaTable(), data);
+    }
+
+    /**
+     * Copies every entry of one table into another, overwriting keys that are already there
+     *
+     * @param to Table to copy into
+     * @param from Table to copy from
+     * @return The table copied into
+     */
+    public static LuaTable copyInto(LuaTable to, LuaTable from) {
+        for (Varargs n = from.next(LuaValue.NIL); !n.arg1().isnil(); n = from.next(n.arg1())) {
+            to.set(n.arg1(), n.arg(2));
+        }
+        return to;
+    }
 }
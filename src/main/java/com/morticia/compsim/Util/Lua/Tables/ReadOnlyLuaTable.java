@@ -4,14 +4,32 @@ import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 public class ReadOnlyLuaTable extends LuaTable {
     public ReadOnlyLuaTable(LuaValue table) {
+        this(table, new IdentityHashMap<>());
+    }
+
+    /**
+     * Copies a table, wrapping each subtable only once
+     *
+     * @param table Table to copy
+     * @param wrapped Tables already copied -> their copy, so shared subtables stay shared and cycles (t.self = t) end
+     */
+    private ReadOnlyLuaTable(LuaValue table, Map<LuaValue, ReadOnlyLuaTable> wrapped) {
+        wrapped.put(table, this);
         presize(table.length(), 0);
         for (Varargs n = table.next(LuaValue.NIL); !n.arg1().isnil(); n = table
                 .next(n.arg1())) {
             LuaValue key = n.arg1();
             LuaValue value = n.arg(2);
-            super.rawset(key, value.istable() ? new ReadOnlyLuaTable(value) : value);
+            if (value.istable()) {
+                ReadOnlyLuaTable copy = wrapped.get(value);
+                value = copy != null ? copy : new ReadOnlyLuaTable(value, wrapped);
+            }
+            super.rawset(key, value);
         }
     }
     public LuaValue setmetatable(LuaValue metatable) { return error("table is read-only"); }